@@ -0,0 +1,216 @@
+package Benchmark;
+
+import Server.Common.Flight;
+import Server.Common.RMHashMap;
+import Server.Common.Trace;
+import Server.Common.WriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Commits write sets to the write-ahead log of a resource manager on local disk, without the RMI stack.
+// Every flush interval is run with 1, 2, 4, ... up to the given number of committing threads, and reports:
+//   - the acknowledged commits per second
+//   - the fsyncs per second and the commits that shared each of them
+//   - the median and 99th percentile latency of a commit, from a histogram with 6% precision
+public class CommitLogBenchmark implements Runnable
+{
+    private static int maxThreads = 16;
+    private static long wholeTime = 2000;
+    private static String directory = System.getProperty("java.io.tmpdir");
+    private static int batchSize = WriteAheadLog.BATCH_SIZE;
+
+    private static final long WARMUP_TIME = 500;
+    private static final long[] FLUSH_INTERVALS = { 0, 1, 2, 5, 10 };
+    // the flights a reservation rewrites
+    private static final int ITEMS = 1000;
+
+    private static AtomicInteger nextXid = new AtomicInteger(0);
+
+    private WriteAheadLog log;
+    private long measureStart;
+    private long endTime;
+
+    // filled in by the client thread, read once it has been joined
+    private long committed = 0;
+    private long[] histogram = new long[BUCKETS];
+
+    public CommitLogBenchmark(WriteAheadLog log, long measureStart, long endTime)
+    {
+        this.log = log;
+        this.measureStart = measureStart;
+        this.endTime = endTime;
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        if (args.length > 0)
+        {
+            maxThreads = Integer.valueOf(args[0]);
+        }
+        if (args.length > 1)
+        {
+            wholeTime = Integer.valueOf(args[1]) * 1000L;
+        }
+        if (args.length > 2)
+        {
+            directory = args[2];
+        }
+        if (args.length > 3)
+        {
+            batchSize = Integer.valueOf(args[3]);
+        }
+
+        // the log traces its replay, which is not measured
+        Trace.setInfo(false);
+
+        System.out.println("Commit log benchmark: up to " + maxThreads + " threads, batch size " + batchSize + ", " +
+                (wholeTime / 1000) + " s per run in " + directory);
+        System.out.println(String.format("%-12s %8s %14s %12s %14s %12s %12s", "interval ms", "threads", "commits/s",
+                "fsyncs/s", "commits/fsync", "p50 us", "p99 us"));
+
+        for (long flushInterval : FLUSH_INTERVALS)
+        {
+            for (int threads = 1; threads <= maxThreads; threads *= 2)
+            {
+                runInterval(flushInterval, threads);
+            }
+        }
+    }
+
+    public static void runInterval(long flushInterval, int threads) throws InterruptedException, IOException
+    {
+        File file = File.createTempFile("commit-log-benchmark", ".wal", new File(directory));
+        file.deleteOnExit();
+        WriteAheadLog log = new WriteAheadLog(file.getPath(), flushInterval, batchSize);
+
+        long measureStart = System.currentTimeMillis() + WARMUP_TIME;
+        CommitLogBenchmark[] clients = new CommitLogBenchmark[threads];
+        Thread[] clientThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            clients[i] = new CommitLogBenchmark(log, measureStart, measureStart + wholeTime);
+            clientThreads[i] = new Thread(clients[i]);
+        }
+        for (int i = 0; i < threads; i++)
+        {
+            clientThreads[i].start();
+        }
+
+        // the fsyncs of the warmup are not counted
+        long sleep = measureStart - System.currentTimeMillis();
+        if (sleep > 0)
+        {
+            Thread.sleep(sleep);
+        }
+        long startForces = log.getForceCount();
+        for (int i = 0; i < threads; i++)
+        {
+            clientThreads[i].join();
+        }
+        long forces = log.getForceCount() - startForces;
+        log.close();
+        file.delete();
+
+        long committed = 0;
+        long[] histogram = new long[BUCKETS];
+        for (CommitLogBenchmark client : clients)
+        {
+            committed += client.committed;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                histogram[i] += client.histogram[i];
+            }
+        }
+
+        double seconds = wholeTime / 1000.0;
+        System.out.println(String.format("%-12d %8d %14.1f %12.1f %14.1f %12.1f %12.1f", flushInterval, threads,
+                committed / seconds, forces / seconds, forces == 0 ? 0 : (double) committed / forces,
+                percentile(histogram, 0.50) / 1000.0, percentile(histogram, 0.99) / 1000.0));
+    }
+
+    @Override
+    public void run()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true)
+        {
+            long now = System.currentTimeMillis();
+            if (now >= endTime)
+            {
+                break;
+            }
+
+            // the write set of a flight reservation
+            int xid = nextXid.incrementAndGet();
+            RMHashMap writeSet = new RMHashMap();
+            Flight flight = new Flight(random.nextInt(ITEMS), 100, 500);
+            writeSet.put(flight.getKey(), flight);
+
+            long start = System.nanoTime();
+            try {
+                log.commit(xid, writeSet);
+            } catch (IOException e) {
+                System.err.println("Commit failed: " + e.getMessage());
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            if (now >= measureStart)
+            {
+                committed++;
+                histogram[bucket(elapsed)]++;
+            }
+        }
+    }
+
+    // Latencies are counted in buckets of 16 per power of two of nanoseconds, which bounds the error of
+    // a percentile to about 6% without keeping every sample
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private static int bucket(long nanos)
+    {
+        if (nanos < SUB_BUCKETS)
+        {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+        return (exponent - 3) * SUB_BUCKETS + sub;
+    }
+
+    // The lower bound of the bucket, in nanoseconds
+    private static long bucketValue(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 3;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - 4);
+    }
+
+    private static long percentile(long[] histogram, double fraction)
+    {
+        long total = 0;
+        for (long count : histogram)
+        {
+            total += count;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++)
+        {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0)
+            {
+                return bucketValue(i);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,199 @@
+package Benchmark;
+
+import Server.Common.Flight;
+import Server.Common.FlightResourceManager;
+import Server.Common.Trace;
+import Server.Exceptions.TransactionAbortedException;
+import Server.LockManager.DeadlockException;
+import Server.LockManager.LockManager;
+import Server.LockManager.TransactionLockObject;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Compares strict two-phase locking with optimistic concurrency control on a flight resource manager,
+// without the RMI stack. Most transactions only query a few flights, the others also reserve one of
+// them. Under locking they take the locks of the middleware before each call, under optimistic
+// concurrency control they take none and are validated by the commit. Every call simulates the RMI
+// round trip, and an aborted transaction is restarted with a new xid like a client would.
+public class ConcurrencyControlBenchmark implements Runnable
+{
+    private static int numOfThreads = 16;
+    private static long wholeTime = 3000;
+    private static String directory = System.getProperty("java.io.tmpdir");
+
+    private static final int[] HOT_KEYS = { 1024, 256, 64, 16, 4 };
+    // the flights queried by each transaction
+    private static final int QUERIES_PER_TRANSACTION = 4;
+    // the percentage of the transactions that reserve a seat
+    private static final int UPDATE_PERCENTAGE = 20;
+    // the simulated round trip of each call to the resource manager, in microseconds
+    private static final int CALL_LATENCY = 100;
+    private static final int SEATS = 100000000;
+
+    private static AtomicInteger nextXid = new AtomicInteger(0);
+
+    private FlightResourceManager manager;
+    // null under optimistic concurrency control
+    private LockManager lockManager;
+    private int hotKeys;
+    private long endTime;
+    private AtomicLong committed;
+    private AtomicLong aborted;
+
+    public ConcurrencyControlBenchmark(FlightResourceManager manager, LockManager lockManager, int hotKeys, long endTime,
+            AtomicLong committed, AtomicLong aborted)
+    {
+        this.manager = manager;
+        this.lockManager = lockManager;
+        this.hotKeys = hotKeys;
+        this.endTime = endTime;
+        this.committed = committed;
+        this.aborted = aborted;
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        if (args.length > 0)
+        {
+            numOfThreads = Integer.valueOf(args[0]);
+        }
+        if (args.length > 1)
+        {
+            wholeTime = Integer.valueOf(args[1]) * 1000L;
+        }
+        if (args.length > 2)
+        {
+            directory = args[2];
+        }
+
+        // the resource manager and the lock manager trace every call, which would dominate the measurements
+        Trace.setInfo(false);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        }));
+
+        out.println("Concurrency control benchmark: " + numOfThreads + " threads, " + QUERIES_PER_TRANSACTION + " queries per transaction, " +
+                UPDATE_PERCENTAGE + "% reserving, " + (wholeTime / 1000) + " s per run");
+        out.println(String.format("%-10s %-12s %12s %12s %12s %14s", "hot keys", "mode", "committed", "aborted", "abort rate", "txn/s"));
+
+        for (int hotKeys : HOT_KEYS)
+        {
+            out.println(run(hotKeys, true));
+            out.println(run(hotKeys, false));
+        }
+    }
+
+    public static String run(int hotKeys, boolean locking) throws Exception
+    {
+        File name = File.createTempFile("occ-benchmark", "", new File(directory));
+        FlightResourceManager manager = new FlightResourceManager(name.getPath(), 0, 64, 0);
+        seed(manager, hotKeys);
+        LockManager lockManager = locking ? new LockManager(LockManager.DeadlockPolicy.DETECTION) : null;
+        AtomicLong committed = new AtomicLong();
+        AtomicLong aborted = new AtomicLong();
+
+        long startTime = System.currentTimeMillis();
+        Thread[] clientThreads = new Thread[numOfThreads];
+        for (int i = 0; i < numOfThreads; i++)
+        {
+            clientThreads[i] = new Thread(new ConcurrencyControlBenchmark(manager, lockManager, hotKeys, startTime + wholeTime,
+                    committed, aborted));
+        }
+        for (int i = 0; i < numOfThreads; i++)
+        {
+            clientThreads[i].start();
+        }
+        for (int i = 0; i < numOfThreads; i++)
+        {
+            clientThreads[i].join();
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        name.delete();
+        new File(name.getPath() + ".wal").delete();
+        new File(name.getPath() + ".snapshot").delete();
+
+        long total = committed.get() + aborted.get();
+        double abortRate = total == 0 ? 0 : (double) aborted.get() / total;
+        double throughput = committed.get() * 1000.0 / elapsed;
+        return String.format("%-10d %-12s %12d %12d %11.1f%% %14.1f", hotKeys, locking ? "LOCKING" : "OPTIMISTIC",
+                committed.get(), aborted.get(), abortRate * 100, throughput);
+    }
+
+    private static void seed(FlightResourceManager manager, int hotKeys) throws Exception
+    {
+        int xid = nextXid.incrementAndGet();
+        manager.startTransaction(xid);
+        for (int i = 0; i < hotKeys; i++)
+        {
+            manager.addFlight(xid, i, SEATS, 100);
+        }
+        manager.commit(xid);
+    }
+
+    @Override
+    public void run()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.currentTimeMillis() < endTime)
+        {
+            int xid = nextXid.incrementAndGet();
+            try {
+                manager.startTransaction(xid);
+                int flightNum = 0;
+                for (int i = 0; i < QUERIES_PER_TRANSACTION; i++)
+                {
+                    flightNum = random.nextInt(hotKeys);
+                    lock(xid, flightNum, TransactionLockObject.LockType.LOCK_READ);
+                    manager.queryFlight(xid, flightNum);
+                    LockSupport.parkNanos(CALL_LATENCY * 1000L);
+                }
+                if (random.nextInt(100) < UPDATE_PERCENTAGE)
+                {
+                    lock(xid, flightNum, TransactionLockObject.LockType.LOCK_WRITE);
+                    manager.reserveFlight(xid, xid, flightNum);
+                    LockSupport.parkNanos(CALL_LATENCY * 1000L);
+                }
+                manager.commit(xid);
+                committed.incrementAndGet();
+            } catch (DeadlockException e) {
+                aborted.incrementAndGet();
+                try {
+                    manager.abort(xid);
+                } catch (Exception abortFailure) {
+                    abortFailure.printStackTrace();
+                }
+            } catch (TransactionAbortedException e) {
+                // failed the validation, already aborted by the commit
+                aborted.incrementAndGet();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                if (lockManager != null)
+                {
+                    lockManager.UnlockAll(xid);
+                }
+            }
+        }
+    }
+
+    private void lock(int xid, int flightNum, TransactionLockObject.LockType lockType) throws DeadlockException
+    {
+        if (lockManager != null)
+        {
+            lockManager.Lock(xid, Flight.getKey(flightNum), lockType);
+        }
+    }
+}
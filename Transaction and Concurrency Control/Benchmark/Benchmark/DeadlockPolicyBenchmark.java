@@ -0,0 +1,132 @@
+package Benchmark;
+
+import Server.Common.Trace;
+import Server.LockManager.DeadlockException;
+import Server.LockManager.LockManager;
+import Server.LockManager.TransactionLockObject;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Compares the abort rate and throughput of the deadlock policies of the lock manager.
+// Every client runs transactions that lock a few hot flights, some for read and some for write,
+// and simulates the RMI call to the resource manager after each lock. An aborted transaction is
+// restarted with a new xid, like a client would after a TransactionAbortedException.
+public class DeadlockPolicyBenchmark implements Runnable
+{
+    private static int numOfThreads = 8;
+    private static long wholeTime = 5000;
+    private static int hotKeys = 16;
+
+    // the number of locks taken by each transaction
+    private static final int LOCKS_PER_TRANSACTION = 4;
+    // the simulated work done after each lock, in microseconds
+    private static final int WORK_PER_LOCK = 50;
+    // the fallback timeout, shortened so that the TIMEOUT policy finishes in reasonable time
+    private static final int DEADLOCK_TIMEOUT = 500;
+
+    private static AtomicInteger nextXid = new AtomicInteger(0);
+
+    private LockManager lockManager;
+    private long endTime;
+    private AtomicLong committed;
+    private AtomicLong aborted;
+    private AtomicLong latency;
+
+    public DeadlockPolicyBenchmark(LockManager lockManager, long endTime, AtomicLong committed, AtomicLong aborted, AtomicLong latency)
+    {
+        this.lockManager = lockManager;
+        this.endTime = endTime;
+        this.committed = committed;
+        this.aborted = aborted;
+        this.latency = latency;
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        if (args.length > 0)
+        {
+            numOfThreads = Integer.valueOf(args[0]);
+        }
+        if (args.length > 1)
+        {
+            wholeTime = Integer.valueOf(args[1]) * 1000L;
+        }
+        if (args.length > 2)
+        {
+            hotKeys = Integer.valueOf(args[2]);
+        }
+
+        // the lock manager traces every call, which would dominate the measurements
+        Trace.setInfo(false);
+
+        System.out.println("Deadlock policy benchmark: " + numOfThreads + " threads, " + hotKeys + " hot keys, " +
+                LOCKS_PER_TRANSACTION + " locks per transaction, " + (wholeTime / 1000) + " s per policy");
+        System.out.println(String.format("%-12s %12s %12s %12s %14s %14s", "policy", "committed", "aborted", "abort rate", "txn/s", "avg ms/txn"));
+
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values())
+        {
+            runPolicy(policy);
+        }
+    }
+
+    public static void runPolicy(LockManager.DeadlockPolicy policy) throws InterruptedException
+    {
+        LockManager lockManager = new LockManager(policy, DEADLOCK_TIMEOUT);
+        AtomicLong committed = new AtomicLong();
+        AtomicLong aborted = new AtomicLong();
+        AtomicLong latency = new AtomicLong();
+
+        long startTime = System.currentTimeMillis();
+        Thread[] clientThreads = new Thread[numOfThreads];
+        for (int i = 0; i < numOfThreads; i++)
+        {
+            clientThreads[i] = new Thread(new DeadlockPolicyBenchmark(lockManager, startTime + wholeTime, committed, aborted, latency));
+        }
+        for (int i = 0; i < numOfThreads; i++)
+        {
+            clientThreads[i].start();
+        }
+        for (int i = 0; i < numOfThreads; i++)
+        {
+            clientThreads[i].join();
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        long total = committed.get() + aborted.get();
+        double abortRate = total == 0 ? 0 : (double) aborted.get() / total;
+        double throughput = committed.get() * 1000.0 / elapsed;
+        double avgLatency = committed.get() == 0 ? 0 : latency.get() / 1e6 / committed.get();
+        System.out.println(String.format("%-12s %12d %12d %11.1f%% %14.1f %14.3f", policy, committed.get(), aborted.get(),
+                abortRate * 100, throughput, avgLatency));
+    }
+
+    @Override
+    public void run()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.currentTimeMillis() < endTime)
+        {
+            int xid = nextXid.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                for (int i = 0; i < LOCKS_PER_TRANSACTION; i++)
+                {
+                    String key = "flight-" + random.nextInt(hotKeys);
+                    TransactionLockObject.LockType lockType = random.nextBoolean() ?
+                            TransactionLockObject.LockType.LOCK_READ : TransactionLockObject.LockType.LOCK_WRITE;
+                    lockManager.Lock(xid, key, lockType);
+                    LockSupport.parkNanos(WORK_PER_LOCK * 1000L);
+                }
+                committed.incrementAndGet();
+                latency.addAndGet(System.nanoTime() - start);
+            } catch (DeadlockException e) {
+                aborted.incrementAndGet();
+            } finally {
+                lockManager.UnlockAll(xid);
+            }
+        }
+    }
+}
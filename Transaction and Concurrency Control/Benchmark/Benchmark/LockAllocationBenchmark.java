@@ -0,0 +1,85 @@
+package Benchmark;
+
+import Server.Common.Trace;
+import Server.LockManager.DeadlockException;
+import Server.LockManager.LockManager;
+import Server.LockManager.TransactionLockObject;
+
+import java.lang.management.ManagementFactory;
+
+// Measures the heap allocated by the uncontended lock path. A single client runs transactions that
+// lock a few items for read, convert one of them, relock one redundantly and release everything.
+// The bytes allocated by the client thread are read from the JVM before and after the measured
+// transactions, so that only the lock manager calls are counted.
+public class LockAllocationBenchmark
+{
+    private static int transactions = 1000000;
+    private static int keys = 1024;
+
+    private static final int WARMUP_TRANSACTIONS = 200000;
+
+    public static void main(String args[]) throws Exception
+    {
+        if (args.length > 0)
+        {
+            transactions = Integer.valueOf(args[0]);
+        }
+        if (args.length > 1)
+        {
+            keys = Integer.valueOf(args[1]);
+        }
+
+        // the lock manager traces every call, which would dominate the measurements
+        Trace.setInfo(false);
+
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+        {
+            System.err.println("Thread allocation counters are not supported by this JVM");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // the keys are built up front, the middleware builds them before calling the lock manager too
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++)
+        {
+            names[i] = "flight-" + i;
+        }
+
+        LockManager lockManager = new LockManager();
+        int xid = 1;
+        xid = runTransactions(lockManager, names, xid, WARMUP_TRANSACTIONS);
+
+        long startBytes = allocationBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        runTransactions(lockManager, names, xid, transactions);
+        long elapsed = System.nanoTime() - startTime;
+        long bytes = allocationBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        // each transaction makes 4 read requests, 1 conversion, 1 redundant request and 1 UnlockAll
+        long operations = transactions * 7L;
+        System.out.println("Lock allocation benchmark: " + transactions + " transactions over " + keys + " keys");
+        System.out.println(String.format("%-24s %14d", "bytes allocated", bytes));
+        System.out.println(String.format("%-24s %14.2f", "bytes per operation", (double) bytes / operations));
+        System.out.println(String.format("%-24s %14.1f", "ns per operation", (double) elapsed / operations));
+    }
+
+    private static int runTransactions(LockManager lockManager, String[] names, int xid, int count) throws DeadlockException
+    {
+        for (int i = 0; i < count; i++, xid++)
+        {
+            int first = (xid * 7) % names.length;
+            for (int j = 0; j < 4; j++)
+            {
+                lockManager.Lock(xid, names[(first + j) % names.length], TransactionLockObject.LockType.LOCK_READ);
+            }
+            lockManager.Lock(xid, names[first], TransactionLockObject.LockType.LOCK_WRITE);
+            lockManager.Lock(xid, names[first], TransactionLockObject.LockType.LOCK_READ);
+            lockManager.UnlockAll(xid);
+        }
+        return xid;
+    }
+}
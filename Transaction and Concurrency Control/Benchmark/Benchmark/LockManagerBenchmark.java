@@ -0,0 +1,342 @@
+package Benchmark;
+
+import Server.Common.Trace;
+import Server.LockManager.DeadlockException;
+import Server.LockManager.LockManager;
+import Server.LockManager.TransactionLockObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Drives the lock manager directly under the contention patterns seen by the middleware, without the
+// RMI stack. Every scenario is run with 1, 2, 4, ... up to the given number of threads. A run warms up
+// first and then measures for the given time:
+//   - the committed transactions per second and the share of them aborted by the deadlock policy
+//   - the bytes allocated per transaction, read from the JVM counters of the client threads
+//   - the median and 99th percentile latency of a transaction, from a histogram with 6% precision
+public class LockManagerBenchmark implements Runnable
+{
+    private static int maxThreads = 8;
+    private static long wholeTime = 2000;
+    private static int keys = 1024;
+
+    private static final long WARMUP_TIME = 500;
+    // the fallback timeout, shortened so that an undetected deadlock does not stall a run
+    private static final int DEADLOCK_TIMEOUT = 500;
+    // the skew of the hot key choice, 0.99 like YCSB
+    private static final double ZIPF_THETA = 0.99;
+    // the number of locks held by the transactions of UNLOCK_MANY
+    private static final int MANY_LOCKS = 256;
+
+    public enum Scenario {
+        UNCONTENDED,    // 4 write locks on keys no other thread uses
+        READ_HEAVY,     // 4 locks on uniformly chosen keys, 90% of them for read
+        HOT_KEY_WRITE,  // 2 write locks on Zipfian chosen keys
+        CONVERSION,     // a read lock upgraded to a write lock on a Zipfian chosen key
+        UNLOCK_MANY     // MANY_LOCKS read locks on private keys released by a single UnlockAll
+    };
+
+    private static AtomicInteger nextXid = new AtomicInteger(0);
+    private static com.sun.management.ThreadMXBean allocationBean;
+    private static double[] zipfCumulative;
+
+    private LockManager lockManager;
+    private Scenario scenario;
+    private int thread;
+    private long measureStart;
+    private long endTime;
+
+    // filled in by the client thread, read once it has been joined
+    private long committed = 0;
+    private long aborted = 0;
+    private long allocated = 0;
+    private long[] histogram = new long[BUCKETS];
+
+    public LockManagerBenchmark(LockManager lockManager, Scenario scenario, int thread, long measureStart, long endTime)
+    {
+        this.lockManager = lockManager;
+        this.scenario = scenario;
+        this.thread = thread;
+        this.measureStart = measureStart;
+        this.endTime = endTime;
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        if (args.length > 0)
+        {
+            maxThreads = Integer.valueOf(args[0]);
+        }
+        if (args.length > 1)
+        {
+            wholeTime = Integer.valueOf(args[1]) * 1000L;
+        }
+        if (args.length > 2)
+        {
+            keys = Integer.valueOf(args[2]);
+        }
+
+        // the lock manager traces every call, which would dominate the measurements
+        Trace.setInfo(false);
+
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean)
+        {
+            allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        zipfCumulative = zipf(keys, ZIPF_THETA);
+
+        System.out.println("Lock manager benchmark: up to " + maxThreads + " threads, " + keys + " keys, " +
+                (wholeTime / 1000) + " s per run");
+        System.out.println(String.format("%-14s %8s %14s %12s %12s %12s %12s", "scenario", "threads", "txn/s", "abort rate",
+                "B/txn", "p50 us", "p99 us"));
+
+        for (Scenario scenario : Scenario.values())
+        {
+            for (int threads = 1; threads <= maxThreads; threads *= 2)
+            {
+                runScenario(scenario, threads);
+            }
+        }
+    }
+
+    public static void runScenario(Scenario scenario, int threads) throws InterruptedException
+    {
+        LockManager lockManager = new LockManager(LockManager.DeadlockPolicy.DETECTION, DEADLOCK_TIMEOUT);
+        if (scenario == Scenario.UNLOCK_MANY)
+        {
+            // measure the release of every lock, not of the single table lock they escalate to
+            lockManager.setEscalationThreshold(0);
+        }
+
+        long measureStart = System.currentTimeMillis() + WARMUP_TIME;
+        LockManagerBenchmark[] clients = new LockManagerBenchmark[threads];
+        Thread[] clientThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            clients[i] = new LockManagerBenchmark(lockManager, scenario, i, measureStart, measureStart + wholeTime);
+            clientThreads[i] = new Thread(clients[i]);
+        }
+        for (int i = 0; i < threads; i++)
+        {
+            clientThreads[i].start();
+        }
+        for (int i = 0; i < threads; i++)
+        {
+            clientThreads[i].join();
+        }
+
+        long committed = 0;
+        long aborted = 0;
+        long allocated = 0;
+        long[] histogram = new long[BUCKETS];
+        for (LockManagerBenchmark client : clients)
+        {
+            committed += client.committed;
+            aborted += client.aborted;
+            allocated += client.allocated;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                histogram[i] += client.histogram[i];
+            }
+        }
+
+        long total = committed + aborted;
+        double abortRate = total == 0 ? 0 : (double) aborted / total;
+        double throughput = committed * 1000.0 / wholeTime;
+        String bytes = allocationBean == null ? "n/a" : String.format("%.1f", total == 0 ? 0 : (double) allocated / total);
+        System.out.println(String.format("%-14s %8d %14.1f %11.1f%% %12s %12.1f %12.1f", scenario, threads, throughput,
+                abortRate * 100, bytes, percentile(histogram, 0.50) / 1000.0, percentile(histogram, 0.99) / 1000.0));
+    }
+
+    @Override
+    public void run()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        // the keys are built up front, the middleware builds them before calling the lock manager too
+        String[] shared = new String[keys];
+        String[] own = new String[Math.max(keys, MANY_LOCKS)];
+        for (int i = 0; i < shared.length; i++)
+        {
+            shared[i] = "flight-" + i;
+        }
+        for (int i = 0; i < own.length; i++)
+        {
+            own[i] = "car-" + thread + "-" + i;
+        }
+
+        long threadId = Thread.currentThread().getId();
+        boolean measuring = false;
+        long startBytes = 0;
+
+        while (true)
+        {
+            long now = System.currentTimeMillis();
+            if (!measuring && now >= measureStart)
+            {
+                measuring = true;
+                startBytes = allocationBean == null ? 0 : allocationBean.getThreadAllocatedBytes(threadId);
+            }
+            if (now >= endTime)
+            {
+                break;
+            }
+
+            int xid = nextXid.incrementAndGet();
+            long start = System.nanoTime();
+            boolean commit = true;
+            try {
+                runTransaction(xid, random, shared, own);
+            } catch (DeadlockException e) {
+                commit = false;
+            } finally {
+                lockManager.UnlockAll(xid);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            if (measuring)
+            {
+                if (commit)
+                {
+                    committed++;
+                    histogram[bucket(elapsed)]++;
+                }
+                else
+                {
+                    aborted++;
+                }
+            }
+        }
+
+        if (allocationBean != null)
+        {
+            allocated = allocationBean.getThreadAllocatedBytes(threadId) - startBytes;
+        }
+    }
+
+    private void runTransaction(int xid, ThreadLocalRandom random, String[] shared, String[] own) throws DeadlockException
+    {
+        switch (scenario)
+        {
+            case UNCONTENDED:
+                for (int i = 0; i < 4; i++)
+                {
+                    lockManager.Lock(xid, own[random.nextInt(keys)], TransactionLockObject.LockType.LOCK_WRITE);
+                }
+                break;
+            case READ_HEAVY:
+                for (int i = 0; i < 4; i++)
+                {
+                    TransactionLockObject.LockType lockType = random.nextInt(10) == 0 ?
+                            TransactionLockObject.LockType.LOCK_WRITE : TransactionLockObject.LockType.LOCK_READ;
+                    lockManager.Lock(xid, shared[random.nextInt(keys)], lockType);
+                }
+                break;
+            case HOT_KEY_WRITE:
+                for (int i = 0; i < 2; i++)
+                {
+                    lockManager.Lock(xid, shared[nextZipf(random)], TransactionLockObject.LockType.LOCK_WRITE);
+                }
+                break;
+            case CONVERSION:
+                String key = shared[nextZipf(random)];
+                lockManager.Lock(xid, key, TransactionLockObject.LockType.LOCK_READ);
+                lockManager.Lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
+                break;
+            case UNLOCK_MANY:
+                for (int i = 0; i < MANY_LOCKS; i++)
+                {
+                    lockManager.Lock(xid, own[i], TransactionLockObject.LockType.LOCK_READ);
+                }
+                break;
+        }
+    }
+
+    // Cumulative distribution of a Zipfian choice among n keys, key 0 being the hottest
+    private static double[] zipf(int n, double theta)
+    {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++)
+        {
+            sum += 1.0 / Math.pow(i + 1, theta);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++)
+        {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int nextZipf(ThreadLocalRandom random)
+    {
+        double u = random.nextDouble();
+        int low = 0;
+        int high = zipfCumulative.length - 1;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (zipfCumulative[middle] < u)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Latencies are counted in buckets of 16 per power of two of nanoseconds, which bounds the error of
+    // a percentile to about 6% without keeping every sample
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private static int bucket(long nanos)
+    {
+        if (nanos < SUB_BUCKETS)
+        {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+        return (exponent - 3) * SUB_BUCKETS + sub;
+    }
+
+    // The lower bound of the bucket, in nanoseconds
+    private static long bucketValue(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 3;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - 4);
+    }
+
+    private static long percentile(long[] histogram, double fraction)
+    {
+        long total = 0;
+        for (long count : histogram)
+        {
+            total += count;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++)
+        {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0)
+            {
+                return bucketValue(i);
+            }
+        }
+        return 0;
+    }
+}
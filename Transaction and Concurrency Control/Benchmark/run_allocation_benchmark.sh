@@ -0,0 +1,3 @@
+# Usage: ./run_allocation_benchmark.sh [<transactions> [<keys>]]
+
+java -cp ../Server/RMIAll.jar:. Benchmark.LockAllocationBenchmark $1 $2
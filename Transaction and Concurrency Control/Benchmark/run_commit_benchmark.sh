@@ -0,0 +1,3 @@
+# Usage: ./run_commit_benchmark.sh [<max_threads> [<seconds_per_run> [<log_directory> [<batch_size>]]]]
+
+java -cp ../Server/RMIAll.jar:. Benchmark.CommitLogBenchmark $1 $2 $3 $4
@@ -0,0 +1,3 @@
+# Usage: ./run_deadlock_benchmark.sh [<threads> [<seconds_per_policy> [<hot_keys>]]]
+
+java -cp ../Server/RMIAll.jar:. Benchmark.DeadlockPolicyBenchmark $1 $2 $3
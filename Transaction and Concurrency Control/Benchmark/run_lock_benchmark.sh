@@ -0,0 +1,3 @@
+# Usage: ./run_lock_benchmark.sh [<max_threads> [<seconds_per_run> [<keys>]]]
+
+java -cp ../Server/RMIAll.jar:. Benchmark.LockManagerBenchmark $1 $2 $3
@@ -0,0 +1,3 @@
+# Usage: ./run_occ_benchmark.sh [<threads> [<seconds_per_run> [<log_directory>]]]
+
+java -cp ../Server/RMIAll.jar:. Benchmark.ConcurrencyControlBenchmark $1 $2 $3
@@ -3,6 +3,7 @@ package Client;
 import Server.Exceptions.InvalidTransactionException;
 import Server.Exceptions.TransactionAbortedException;
 import Server.Interface.*;
+import Server.Transaction.IsolationLevel;
 
 import java.util.*;
 import java.io.*;
@@ -488,6 +489,15 @@ public abstract class Client
 				}
 				break;
 			}
+			case DumpLocks: {
+				checkArgumentsCount(1, arguments.size());
+				System.out.println("Showing the lock table");
+				String result = m_resourceManager.dumpLocks();
+				if (result != null) {
+					System.out.println(result);
+				}
+				break;
+			}
 			case Start: {
 				checkArgumentsCount(1, arguments.size());
 				System.out.println("Starting a new transaction:");
@@ -495,6 +505,13 @@ public abstract class Client
 				System.out.println("The xid for this transaction is " + xid);
 				break;
 			}
+			case StartReadCommitted: {
+				checkArgumentsCount(1, arguments.size());
+				System.out.println("Starting a new read committed transaction:");
+				int xid = m_resourceManager.start(IsolationLevel.READ_COMMITTED);
+				System.out.println("The xid for this transaction is " + xid);
+				break;
+			}
 			case Commit: {
 				checkArgumentsCount(2, arguments.size());
 				int xid = toInt(arguments.elementAt(1));
@@ -32,9 +32,11 @@ public enum Command {
 
 	Bundle("Book N flight numbers, and optionally a room and/or car at a location", "<xid>,<CustomerID>,<FlightNumber1>...<FlightNumberN>,<Location>,<Car-Y/N>,<Room-Y/N>"),
 	Summary("Show the information about the booking status of custmors","<xid>"),
+	DumpLocks("Show the lock table, the wait queues and the lock metrics of the middleware", ""),
 	//Analytics("Show the items with low remaining quantities", "xid"),
 
 	Start("Start a Transaction. It will returns a transaction identifier", ""),
+	StartReadCommitted("Start a transaction whose queries read the last committed values without locks", ""),
 	Commit("Commit a transaction specified by the id", "<xid>"),
 	Abort("Abort a transaction specified by the id", "<xid>"),
 	Shutdown("Shutdown all the servers", ""),
@@ -2,6 +2,8 @@ package Client;
 
 
 import Server.Interface.*;
+import Server.Transaction.Operation;
+import Server.Transaction.TransactionResult;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -19,6 +21,8 @@ public class RMIAutoClient extends Client implements Runnable
     private int id = -1;
     private int throughput = -1;
     private static long wholeTime = 10000;
+    // whether each transaction is sent as a whole in one call, can be given as the fourth argument
+    private static boolean oneShot = false;
 
     // how many transactions are done within a second
     private static final int THROUGHPUT = 2;
@@ -52,6 +56,10 @@ public class RMIAutoClient extends Client implements Runnable
         {
             numOfClients= Integer.valueOf(args[2]);
         }
+        if (args.length > 3)
+        {
+            oneShot = args[3].equalsIgnoreCase("oneshot");
+        }
         if (args.length > 4)
         {
             System.err.println((char)27 + "[31;1mClient exception: " + (char)27 +
@@ -127,6 +135,18 @@ public class RMIAutoClient extends Client implements Runnable
         int customerID = (int)(Math.random() * 100 + 1);
         int flightNumber = (int)(Math.random() * 20 + 1);
 
+        if (oneShot) {
+            // the same transaction in a single round trip instead of six
+            List<Operation> operations = new ArrayList<>();
+            operations.add(Operation.newCustomer(customerID));
+            operations.add(Operation.addRooms(places[index], price, amount));
+            operations.add(Operation.queryCarsPrice(places[index]));
+            operations.add(Operation.reserveFlight(customerID, flightNumber));
+            TransactionResult result = m_resourceManager.executeTransaction(operations);
+            System.out.println("Finished a transaction: " + result);
+            return times;
+        }
+
         int xid = m_resourceManager.start();
         m_resourceManager.newCustomer(xid, customerID);
         m_resourceManager.addRooms(xid, places[index], price, amount);
@@ -1 +1 @@
-java -Djava.security.policy=java.policy -cp ../Server/RMIAll.jar:. Client.RMIAutoClient $1 $2 $3
\ No newline at end of file
+java -Djava.security.policy=java.policy -cp ../Server/RMIAll.jar:. Client.RMIAutoClient $1 $2 $3 $4
\ No newline at end of file
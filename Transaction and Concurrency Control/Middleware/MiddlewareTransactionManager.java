@@ -1,43 +1,128 @@
+import Server.Common.PersistentStore;
+import Server.Common.Trace;
+import Server.Exceptions.InvalidTransactionException;
+import Server.Transaction.IsolationLevel;
 import Server.Transaction.Transaction;
 import Server.Transaction.LocalBuffer;
 
+import java.io.IOException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class MiddlewareTransactionManager extends LocalBuffer {
 
-    private int nextXid = 0;
+    // the xids are leased from the log of the middleware a block at a time, so that a restart never hands
+    // out an xid again: a resource manager may still hold a prepared transaction under it
+    private static final int XID_BLOCK = 1000;
+    private AtomicInteger nextXid;
+    private volatile int leased;
+    private PersistentStore store;
     private int timeToLive;
     private RMIMiddleware middleware;
 
-    public MiddlewareTransactionManager(int timeToLive, RMIMiddleware middleware){
+    // one entry per active transaction, due at the deadline it had when the entry was queued
+    private DelayQueue<Expiry> expiries = new DelayQueue<>();
+    // aborts the expired transactions, so that a slow resource manager does not hold back the other expiries
+    private ExecutorService reaped = Executors.newCachedThreadPool();
+
+    public MiddlewareTransactionManager(int timeToLive, RMIMiddleware middleware, PersistentStore store){
         this.middleware = middleware;
         this.timeToLive = timeToLive;
+        this.store = store;
+        leased = store.getLeased();
+        nextXid = new AtomicInteger(leased);
 
-        new Thread(new Runnable() {
+        Thread reaper = new Thread(new Runnable() {
             @Override
             public void run() {
-                try{
-                    while (true){
-                        synchronized (activeTransactions){
-                            for (Integer key : activeTransactions.keySet()){
-                                if (activeTransactions.get(key) != null && activeTransactions.get(key).hasExpired()){
-                                    System.out.println("The transaction " + key + " has reached the time-to-live");
-                                    System.out.println("Ready to abort it");
-                                    middleware.abort(key);
-                                }
-                            }
-                        }
-                        Thread.sleep(3500);
+                while (true) {
+                    Expiry expiry;
+                    try {
+                        expiry = expiries.take();
+                    } catch (InterruptedException e) {
+                        return;
                     }
-                }catch (Exception e){
-                   e.printStackTrace();
+                    reap(expiry.xid);
                 }
             }
-        }).start();
+        }, "Transaction reaper");
+        reaper.setDaemon(true);
+        reaper.start();
     }
 
-    public int startTransaction(){
-        nextXid ++;
-        int xid = nextXid;
-        updateActiveTransaction(xid, new Transaction(xid, timeToLive));
+    public int startTransaction() throws IOException {
+        return startTransaction(IsolationLevel.SERIALIZABLE);
+    }
+
+    public int startTransaction(IsolationLevel isolation) throws IOException {
+        int xid = nextXid.incrementAndGet();
+        if (xid > leased)
+            lease(xid);
+        Transaction transaction = new Transaction(xid, timeToLive);
+        transaction.setIsolation(isolation);
+        updateActiveTransaction(xid, transaction);
+        expiries.put(new Expiry(xid, transaction.getDeadline()));
         return xid;
     }
+
+    private synchronized void lease(int xid) throws IOException {
+        if (xid <= leased)
+            return;
+        store.lease(xid + XID_BLOCK);
+        leased = xid + XID_BLOCK;
+    }
+
+    // Called once the deadline a transaction had when it was queued has passed. Touching a transaction only
+    // moves its deadline, the entry is queued again here if it has been touched since. A transaction that has
+    // started to commit is left to its commit. The abort itself runs on the pool, the reaper thread only dequeues
+    private void reap(final int xid) {
+        Transaction transaction = getActiveTransaction(xid);
+        if (transaction == null || !isActive(xid))
+            return;
+        if (!transaction.hasExpired()) {
+            expiries.put(new Expiry(xid, transaction.getDeadline()));
+            return;
+        }
+        if (!transaction.wound())
+            return;
+
+        reaped.execute(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("The transaction " + xid + " has reached the time-to-live");
+                System.out.println("Ready to abort it");
+                try {
+                    middleware.abort(xid);
+                } catch (InvalidTransactionException e) {
+                    // committed or aborted by its client in the meantime
+                } catch (Exception e) {
+                    Trace.error("TM::reap(" + xid + ") failed to abort the expired transaction: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static class Expiry implements Delayed {
+        private final int xid;
+        private final long deadline;
+
+        Expiry(int xid, long deadline) {
+            this.xid = xid;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline, ((Expiry) other).deadline);
+        }
+    }
 }
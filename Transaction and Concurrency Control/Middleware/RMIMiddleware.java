@@ -6,14 +6,25 @@ import Server.LockManager.DeadlockException;
 import Server.LockManager.LockManager;
 import Server.LockManager.TransactionLockObject;
 import Server.Transaction.InactiveStatus;
+import Server.Transaction.IsolationLevel;
+import Server.Transaction.Operation;
 import Server.Transaction.Transaction;
+import Server.Transaction.TransactionResult;
+import Server.Transaction.Vote;
 
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class RMIMiddleware implements IResourceManager {
 
@@ -45,15 +56,38 @@ public class RMIMiddleware implements IResourceManager {
     // in this case, the middleware itself could be regarded as a customer manager
     protected String m_name = "";
     protected RMHashMap m_data = new RMHashMap();
+    // logs the customer commits and checkpoints m_data, which it recovers on restart
+    protected PersistentStore m_store;
+    // the versions of the customers, the reads of a transaction are validated against them on commit
+    protected VersionTable m_versions = new VersionTable();
 
     private MiddlewareTransactionManager transactionManager;
+    // sends the prepare, commit and abort messages of the two-phase commit to the resource managers in parallel
+    private ExecutorService coordinator = Executors.newCachedThreadPool();
+    // how long a participant has to vote before it counts as a no, and how often an unreachable one is told again
+    private static final long PREPARE_TIMEOUT = 10000;
+    private static final long RETRY_INTERVAL = 2000;
     private LockManager lockManager;
     private int timeToLive = 25000;
+    // how the lock manager deals with deadlocks, can be given as the fourth argument
+    private static LockManager.DeadlockPolicy deadlockPolicy = LockManager.DeadlockPolicy.DETECTION;
+    // record locks a transaction may hold in one table before they are escalated, can be given as the fifth argument
+    private static int escalationThreshold = -1;
+    // how often the customers are checkpointed, can be given as the sixth argument
+    private static long checkpointInterval = PersistentStore.CHECKPOINT_INTERVAL;
+
+    // LOCKING takes the locks of strict two-phase locking before every access. OPTIMISTIC takes none, the
+    // transactions read and write freely and the participants validate what they read when they commit
+    public enum ConcurrencyControl {
+        LOCKING, OPTIMISTIC
+    }
+    // can be given as the seventh argument
+    private static ConcurrencyControl concurrencyControl = ConcurrencyControl.LOCKING;
 
     public static void main(String[] args) {
 
         // arguments check
-        if (args.length == 3) {
+        if (args.length >= 3) {
             System.out.println("Configuring the middleware...");
             // assign the host names
             // flight at first
@@ -63,6 +97,22 @@ public class RMIMiddleware implements IResourceManager {
             // room at last
             server_host_names[0] = args[2];
         }
+        if (args.length >= 4) {
+            // timeout, detection, wait_die or wound_wait
+            deadlockPolicy = LockManager.DeadlockPolicy.valueOf(args[3].toUpperCase());
+        }
+        if (args.length >= 5) {
+            // 0 never escalates
+            escalationThreshold = Integer.parseInt(args[4]);
+        }
+        if (args.length >= 6) {
+            // 0 only keeps the log
+            checkpointInterval = Long.parseLong(args[5]);
+        }
+        if (args.length >= 7) {
+            // locking or optimistic
+            concurrencyControl = ConcurrencyControl.valueOf(args[6].toUpperCase());
+        }
 
         System.out.println("The middleware is running!");
         // check the existence of middleware
@@ -71,10 +121,13 @@ public class RMIMiddleware implements IResourceManager {
             INSTANCE = new RMIMiddleware();
         }
         INSTANCE.init();
+        // recover the customers before any client can reach them
+        INSTANCE.initStore();
         INSTANCE.createEntry();
 
         // try to look for other servers
         INSTANCE.findSpecificServes();
+        INSTANCE.recoverCommits();
 
         INSTANCE.initTransactionAndLockManagers();
 
@@ -87,9 +140,49 @@ public class RMIMiddleware implements IResourceManager {
         INSTANCE.m_name = "Customer";
     }
 
+    public void initStore() {
+        try {
+            m_store = new PersistentStore(m_name, m_data, WriteAheadLog.FLUSH_INTERVAL, WriteAheadLog.BATCH_SIZE,
+                    checkpointInterval);
+        } catch (IOException e) {
+            System.err.println("Failed to recover the customers: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     public void initTransactionAndLockManagers() {
-        transactionManager = new MiddlewareTransactionManager(timeToLive, this);
-        lockManager = new LockManager();
+        transactionManager = new MiddlewareTransactionManager(timeToLive, this, m_store);
+        lockManager = new LockManager(deadlockPolicy);
+        // a younger transaction wounded while it runs is aborted right away, so that the older one does not
+        // wait until the younger asks for another lock
+        lockManager.setWoundHandler(new LockManager.WoundHandler() {
+            @Override
+            public void wounded(final int xid) {
+                Transaction transaction = transactionManager.getActiveTransaction(xid);
+                if (transaction == null || !transaction.wound())
+                    return;
+                coordinator.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        System.out.println("The transaction " + xid + " has been wounded by an older transaction");
+                        abortIfActive(xid);
+                        return null;
+                    }
+                });
+            }
+        });
+        if (escalationThreshold >= 0) {
+            lockManager.setEscalationThreshold(escalationThreshold);
+        }
+        System.out.println("The lock manager handles deadlocks with the " + deadlockPolicy + " policy");
+        System.out.println("The lock manager escalates past " + lockManager.getEscalationThreshold() + " record locks per table");
+        System.out.println("The transactions run under " + concurrencyControl + " concurrency control");
+        try {
+            // the metrics can be watched with jconsole, dumpLocks shows the same from the client
+            lockManager.registerMBean(MIDDLEWARE_NAME);
+        } catch (Exception e) {
+            System.out.println("Failed to register the lock manager metrics: " + e.getMessage());
+        }
     }
 
     // This method would setup or create RMI middleware entry accordingly
@@ -283,35 +376,37 @@ public class RMIMiddleware implements IResourceManager {
     public boolean deleteCustomer(int xid, int customerID)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") called");
-        // read this customer to get some info at first
-        prepare(xid, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_READ, this);
+        // read this customer to get some info at first, with an update lock since it is deleted next
+        prepare(xid, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_UPDATE, this);
         Customer customer = (Customer) readData(xid, Customer.getKey(customerID));
         if (customer == null) {
             Trace.warn("RM::deleteCustomer(" + xid + ", " + customerID + ") failed--customer doesn't exist");
             return false;
         } else {
             // Increase the reserved numbers of all reservable items which the customer reserved.
-            // get the write lock at first
+            // get the write locks on the customer and on every reserved item at first, all at once
             // before real delete stuff happens
-            getLock(xid, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_WRITE);
             RMHashMap reservations = customer.getReservations();
+            HashMap<String, TransactionLockObject.LockType> footprint = new HashMap<String, TransactionLockObject.LockType>();
+            footprint.put(Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_WRITE);
+            for (String reservedKey : reservations.keySet()) {
+                footprint.put(reservedKey, TransactionLockObject.LockType.LOCK_WRITE);
+            }
+            getLocks(xid, footprint);
             for (String reservedKey : reservations.keySet()) {
                 ReservedItem reserveditem = customer.getReservedItem(reservedKey);
                 Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") has reserved " + reserveditem.getKey() + " " + reserveditem.getCount() + " times");
                 // determine the genre of the item
                 ReservedItem item = customer.getReservedItem(reservedKey);
                 if ((reservedKey.startsWith("car"))){
-                    getLock(xid, reservedKey, TransactionLockObject.LockType.LOCK_WRITE);
                     distribute(xid, serverToManagerMap.get("Cars"));
                     serverToManagerMap.get("Cars").revertReservation(xid, customerID, item.getKey(), item.getCount());
                 }
                 if (reservedKey.startsWith("room")) {
-                    getLock(xid, reservedKey, TransactionLockObject.LockType.LOCK_WRITE);
                     distribute(xid, serverToManagerMap.get("Rooms"));
                     serverToManagerMap.get("Rooms").revertReservation(xid, customerID, item.getKey(), item.getCount());
                 }
                 if (reservedKey.startsWith("flight")) {
-                    getLock(xid, reservedKey, TransactionLockObject.LockType.LOCK_WRITE);
                     distribute(xid, serverToManagerMap.get("Flights"));
                     serverToManagerMap.get("Flights").revertReservation(xid, customerID, item.getKey(), item.getCount());
                 }
@@ -327,6 +422,8 @@ public class RMIMiddleware implements IResourceManager {
     @Override
     public int queryFlight(int id, int flightNumber) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Flight Resource Manager...");
+        if (readsCommitted(id))
+            return queryCommittedNum(id, Flight.getKey(flightNumber));
         prepare(id, Flight.getKey(flightNumber), TransactionLockObject.LockType.LOCK_READ, serverToManagerMap.get("Flights"));
         return serverToManagerMap.get("Flights").queryFlight(id, flightNumber);
     }
@@ -334,6 +431,8 @@ public class RMIMiddleware implements IResourceManager {
     @Override
     public int queryCars(int id, String location) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Car Resource Manager...");
+        if (readsCommitted(id))
+            return queryCommittedNum(id, Car.getKey(location));
         prepare(id, Car.getKey(location), TransactionLockObject.LockType.LOCK_READ, serverToManagerMap.get("Cars"));
         return serverToManagerMap.get("Cars").queryCars(id, location);
     }
@@ -341,6 +440,8 @@ public class RMIMiddleware implements IResourceManager {
     @Override
     public int queryRooms(int id, String location) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Room Resource Manager...");
+        if (readsCommitted(id))
+            return queryCommittedNum(id, Room.getKey(location));
         prepare(id, Room.getKey(location), TransactionLockObject.LockType.LOCK_READ, serverToManagerMap.get("Rooms"));
         return serverToManagerMap.get("Rooms").queryRooms(id, location);
     }
@@ -366,6 +467,8 @@ public class RMIMiddleware implements IResourceManager {
     public int queryFlightPrice(int id, int flightNumber)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Flight Resource Manager...");
+        if (readsCommitted(id))
+            return queryCommittedPrice(id, Flight.getKey(flightNumber));
         prepare(id, Flight.getKey(flightNumber), TransactionLockObject.LockType.LOCK_READ, serverToManagerMap.get("Flights"));
         return serverToManagerMap.get("Flights").queryFlightPrice(id, flightNumber);
     }
@@ -374,6 +477,8 @@ public class RMIMiddleware implements IResourceManager {
     public int queryCarsPrice(int id, String location)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Car Resource Manager...");
+        if (readsCommitted(id))
+            return queryCommittedPrice(id, Car.getKey(location));
         prepare(id, Car.getKey(location), TransactionLockObject.LockType.LOCK_READ, serverToManagerMap.get("Cars"));
         return serverToManagerMap.get("Cars").queryCarsPrice(id, location);
     }
@@ -382,6 +487,8 @@ public class RMIMiddleware implements IResourceManager {
     public int queryRoomsPrice(int id, String location)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Room Resource Manager...");
+        if (readsCommitted(id))
+            return queryCommittedPrice(id, Room.getKey(location));
         prepare(id, Room.getKey(location), TransactionLockObject.LockType.LOCK_READ, serverToManagerMap.get("Rooms"));
         return serverToManagerMap.get("Rooms").queryRoomsPrice(id, location);
     }
@@ -392,8 +499,8 @@ public class RMIMiddleware implements IResourceManager {
         System.out.println("The request has been forwarded to Flight Resource Manager...");
 
         // first check whether the given customer exists or not
-        // get the shared lock for customer
-        prepare(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_READ, this);
+        // get the update lock for customer, it is written once the item is reserved
+        prepare(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_UPDATE, this);
         Customer customer = getCustomer(id, customerID);
         if (customer == null) {
             Trace.warn("RM::queryCustomerInfo(" + id + ", " + customerID + ") failed--customer doesn't exist");
@@ -402,8 +509,8 @@ public class RMIMiddleware implements IResourceManager {
         }
 
         // reserve the flight!
-        // get the lock at first
-        getLock(id, Flight.getKey(flightNumber), TransactionLockObject.LockType.LOCK_WRITE);
+        // get the lock at first, an escrow lock lets the other reservations of the flight run alongside
+        getLock(id, Flight.getKey(flightNumber), TransactionLockObject.LockType.LOCK_ESCROW);
         distribute(id, serverToManagerMap.get("Flights"));
         ReservableItem item = serverToManagerMap.get("Flights").reserveFlight(id, customerID, flightNumber);
         // check whether or not reserving is successful
@@ -414,8 +521,7 @@ public class RMIMiddleware implements IResourceManager {
         // we are good!
         // again acquire the locks!
         getLock(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_WRITE);
-        customer.reserve(Flight.getKey(flightNumber), String.valueOf(flightNumber), item.getPrice());
-        this.updateCustomerOrItem(id, customer.getKey(), customer);
+        updateData(id, customer.getKey(), new ReservationDelta(Flight.getKey(flightNumber), String.valueOf(flightNumber), item.getPrice()));
         return item;
     }
 
@@ -424,8 +530,8 @@ public class RMIMiddleware implements IResourceManager {
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Car Resource Manager...");
         // first check whether the given customer exists or not
-        // get the shared lock for customer
-        prepare(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_READ, this);
+        // get the update lock for customer, it is written once the item is reserved
+        prepare(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_UPDATE, this);
         Customer customer = getCustomer(id, customerID);
         if (customer == null) {
             Trace.warn("RM::queryCustomerInfo(" + id + ", " + customerID + ") failed--customer doesn't exist");
@@ -435,7 +541,7 @@ public class RMIMiddleware implements IResourceManager {
 
         // reserve the car!
         // get the lock at first
-        getLock(id, Car.getKey(location), TransactionLockObject.LockType.LOCK_WRITE);
+        getLock(id, Car.getKey(location), TransactionLockObject.LockType.LOCK_ESCROW);
         distribute(id, serverToManagerMap.get("Cars"));
         ReservableItem item = serverToManagerMap.get("Cars").reserveCar(id, customerID, location);
         // check whether or not reserving is successful
@@ -446,8 +552,7 @@ public class RMIMiddleware implements IResourceManager {
         // we are good!
         // again acquire the locks!
         getLock(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_WRITE);
-        customer.reserve(Car.getKey(location),location, item.getPrice());
-        this.updateCustomerOrItem(id, customer.getKey(), customer);
+        updateData(id, customer.getKey(), new ReservationDelta(Car.getKey(location), location, item.getPrice()));
         return item;
     }
 
@@ -456,8 +561,8 @@ public class RMIMiddleware implements IResourceManager {
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         System.out.println("The request has been forwarded to Room Resource Manager...");
         // first check whether the given customer exists or not
-        // get the shared lock for customer
-        prepare(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_READ, this);
+        // get the update lock for customer, it is written once the item is reserved
+        prepare(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_UPDATE, this);
         Customer customer = getCustomer(id, customerID);
         if (customer == null) {
             Trace.warn("RM::queryCustomerInfo(" + id + ", " + customerID + ") failed--customer doesn't exist");
@@ -467,7 +572,7 @@ public class RMIMiddleware implements IResourceManager {
 
         // reserve the car!
         // get the lock at first
-        getLock(id, Room.getKey(location), TransactionLockObject.LockType.LOCK_WRITE);
+        getLock(id, Room.getKey(location), TransactionLockObject.LockType.LOCK_ESCROW);
         distribute(id, serverToManagerMap.get("Rooms"));
         ReservableItem item = serverToManagerMap.get("Rooms").reserveRoom(id, customerID, location);
         // check whether or not reserving is successful
@@ -478,8 +583,7 @@ public class RMIMiddleware implements IResourceManager {
         // we are good!
         // again acquire the locks!
         getLock(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_WRITE);
-        customer.reserve(Room.getKey(location),location, item.getPrice());
-        this.updateCustomerOrItem(id, customer.getKey(), customer);
+        updateData(id, customer.getKey(), new ReservationDelta(Room.getKey(location), location, item.getPrice()));
         return item;
     }
 
@@ -488,15 +592,6 @@ public class RMIMiddleware implements IResourceManager {
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         Trace.info("RM::bundle(" + id + ", customer=" + customerID + ", " +
                 flightNumbers.toString() + ", " + location + ") called" );
-        // no matter what, get the info about the customer at first
-        prepare(id, Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_READ, this);
-        // we are ready to read the customer
-        Customer customer = (Customer)readData(id, Customer.getKey(customerID));
-        if (customer == null){
-            System.out.println("RM:bundle(" + id + ", customer=" + customerID +
-                    ", " + flightNumbers.toString() + ", " + location + ")  failed--customer doesn't exist");
-        }
-
         // pile up the flight numbers to handle the case for duplicated flight numbers
         HashMap<String, Integer> numToCount = new HashMap<String, Integer>();
 
@@ -509,11 +604,36 @@ public class RMIMiddleware implements IResourceManager {
             }
         }
 
+        // declare the whole footprint up front, the lock manager takes it in its canonical order so
+        // that bundles never deadlock with each other
+        // the customer and the items are checked with update locks, they are all written afterwards
+        HashMap<String, TransactionLockObject.LockType> footprint = new HashMap<String, TransactionLockObject.LockType>();
+        footprint.put(Customer.getKey(customerID), TransactionLockObject.LockType.LOCK_UPDATE);
+        for (String flightNum : numToCount.keySet()) {
+            footprint.put(Flight.getKey(Integer.parseInt(flightNum)), TransactionLockObject.LockType.LOCK_UPDATE);
+        }
+        if (car) {
+            footprint.put(Car.getKey(location), TransactionLockObject.LockType.LOCK_UPDATE);
+        }
+        if (room) {
+            footprint.put(Room.getKey(location), TransactionLockObject.LockType.LOCK_UPDATE);
+        }
+        checkIllegalTransaction(id);
+        getLocks(id, footprint);
+        distribute(id, this);
+
+        // no matter what, get the info about the customer at first
+        // we are ready to read the customer
+        Customer customer = (Customer)readData(id, Customer.getKey(customerID));
+        if (customer == null){
+            System.out.println("RM:bundle(" + id + ", customer=" + customerID +
+                    ", " + flightNumbers.toString() + ", " + location + ")  failed--customer doesn't exist");
+        }
+
         // start to check the flights
         for (String flightNum : numToCount.keySet()){
             // convert it to int at first
             int num = Integer.parseInt(flightNum);
-            getLock(id, Flight.getKey(num), TransactionLockObject.LockType.LOCK_READ);
             distribute(id, serverToManagerMap.get("Flights"));
             if (serverToManagerMap.get("Flights").getPrice(id, Flight.getKey(num), numToCount.get(flightNum)) < 0){
                 System.out.println("bundle failed because the flight  " + flightNum + " may not exist or does not enough storage.");
@@ -525,7 +645,6 @@ public class RMIMiddleware implements IResourceManager {
 
         if (car){
             // check the car availability
-            getLock(id, Car.getKey(location), TransactionLockObject.LockType.LOCK_READ);
             distribute(id,serverToManagerMap.get("Cars"));
             if (serverToManagerMap.get("Cars").getPrice(id, Car.getKey(location), 1) < 0){
                 System.out.println("bundle failed because the car at " + location + " may not exist or does not enough storage.");
@@ -536,7 +655,6 @@ public class RMIMiddleware implements IResourceManager {
 
         if (room){
             // check the car availability
-            getLock(id, Room.getKey(location), TransactionLockObject.LockType.LOCK_READ);
             distribute(id,serverToManagerMap.get("Rooms"));
             if (serverToManagerMap.get("Rooms").getPrice(id, Room.getKey(location), 1) < 0){
                 System.out.println("bundle failed because the room at " + location + " may not exist or does not enough storage.");
@@ -553,19 +671,18 @@ public class RMIMiddleware implements IResourceManager {
         if (car){
             getLock(id, Car.getKey(location), TransactionLockObject.LockType.LOCK_WRITE);
             serverToManagerMap.get("Cars").reserveCar(id, customerID, location);
-            customer.reserve(Car.getKey(location), location,
-                    serverToManagerMap.get("Cars").getPrice(id, Car.getKey(location), 1));
+            updateData(id, customer.getKey(), new ReservationDelta(Car.getKey(location), location,
+                    serverToManagerMap.get("Cars").getPrice(id, Car.getKey(location), 1)));
             System.out.println("Finished reserve car");
         }
 
         if (room){
             getLock(id, Room.getKey(location), TransactionLockObject.LockType.LOCK_WRITE);
             serverToManagerMap.get("Rooms").reserveRoom(id, customerID, location);
-            customer.reserve(Room.getKey(location), location,
-                    serverToManagerMap.get("Rooms").getPrice(id, Room.getKey(location), 1));
+            updateData(id, customer.getKey(), new ReservationDelta(Room.getKey(location), location,
+                    serverToManagerMap.get("Rooms").getPrice(id, Room.getKey(location), 1)));
             System.out.println("Finished reserve room");
         }
-        //updateCustomerOrItem(id, customer.getKey(), customer);
         // reserve the flights
         for (String flightNum : numToCount.keySet())
         {
@@ -574,8 +691,7 @@ public class RMIMiddleware implements IResourceManager {
                         .get("Flights").getPrice(id, Flight.getKey(Integer.parseInt(flightNum)), 1);
                 getLock(id, Flight.getKey(Integer.parseInt(flightNum)), TransactionLockObject.LockType.LOCK_WRITE);
                 serverToManagerMap.get("Flights").reserveFlight(id, customerID, Integer.parseInt(flightNum));
-                customer.reserve(Flight.getKey(Integer.parseInt(flightNum)), flightNum, price);
-                updateCustomerOrItem(id, customer.getKey(), customer);
+                updateData(id, customer.getKey(), new ReservationDelta(Flight.getKey(Integer.parseInt(flightNum)), flightNum, price));
             }
         }
         System.out.println("Finished reserve flight");
@@ -609,7 +725,9 @@ public class RMIMiddleware implements IResourceManager {
     }
 
     @Override
-    public String summary(int xid) throws RemoteException {
+    public String summary(int xid) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
+        // one read lock on the customer table keeps every customer consistent while they are listed
+        prepare(xid, LockManager.CUSTOMER_TABLE, TransactionLockObject.LockType.LOCK_READ, this);
         synchronized (m_data) {
             String result = "";
             for (String key : m_data.keySet()) {
@@ -636,35 +754,93 @@ public class RMIMiddleware implements IResourceManager {
 
     @Override
     public int start() throws RemoteException {
-        int xid = transactionManager.startTransaction();
+        int xid;
+        try {
+            xid = transactionManager.startTransaction();
+        } catch (IOException e) {
+            throw new RemoteException("Could not lease an xid", e);
+        }
         Trace.info("Start the transaction with xid " + xid);
         return xid;
     }
 
+    @Override
+    public int start(IsolationLevel isolation) throws RemoteException {
+        int xid;
+        try {
+            xid = transactionManager.startTransaction(isolation);
+        } catch (IOException e) {
+            throw new RemoteException("Could not lease an xid", e);
+        }
+        Trace.info("Start the transaction with xid " + xid + " at the isolation level " + isolation);
+        return xid;
+    }
+
+    @Override
+    public ReservableItem readCommitted(int xid, String key) throws RemoteException {
+        // the items are on the resource manager named by the prefix of their key
+        if (key.startsWith("flight-"))
+            return serverToManagerMap.get("Flights").readCommitted(xid, key);
+        if (key.startsWith("car-"))
+            return serverToManagerMap.get("Cars").readCommitted(xid, key);
+        if (key.startsWith("room-"))
+            return serverToManagerMap.get("Rooms").readCommitted(xid, key);
+        return null;
+    }
+
+    @Override
+    public Vote prepare(int transactionId) throws RemoteException, InvalidTransactionException {
+        // the middleware takes part in the commit as the manager of the customers
+        Transaction transaction = transactionManager.getActiveTransaction(transactionId);
+        if (transaction == null)
+            throw new InvalidTransactionException(transactionId, "This is not a valid transaction");
+
+        // the customers read must be unchanged, under optimistic concurrency control they were read without locks
+        if (!m_versions.validate(transactionId, transaction.getReads(), transaction.getBases(), transaction.getWrites(), transaction.getCommutativeWrites()))
+            return Vote.NO;
+        // customers that were only read have nothing to log
+        if (transaction.isReadOnly())
+            return Vote.READ_ONLY;
+        try {
+            transaction.getWriteSet(m_data);
+            m_store.prepare(transactionId, transaction.getChanges());
+        } catch (IOException e) {
+            System.out.println("Could not log the prepare of the transaction " + transactionId + ": " + e.getMessage());
+            m_versions.release(transactionId, transaction.getWrites());
+            return Vote.NO;
+        }
+        transaction.setPrepared(true);
+        return Vote.YES;
+    }
+
+    @Override
+    public Set<Integer> getInDoubt() throws RemoteException {
+        // the customers of the transactions prepared before a restart are settled by recoverCommits
+        return transactionManager.getPrepared();
+    }
+
     @Override
     public boolean commit(int transactionId) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         System.out.println("Start to commit the transaction " + transactionId);
         checkIllegalTransaction(transactionId);
 
-        // tell the related resource managers to commit the transaction
-        ArrayList<IResourceManager> managers =
-                transactionManager.getActiveTransaction(transactionId).getManagers();
-        System.out.println("------------------------------------");
-        for (IResourceManager manager : managers) {
-            System.out.println(manager.getName());
-            // handle the customer separately
-            if (!("Customer").equals(manager.getName())) {
-                System.out.println("Tell " + manager.getName() + " to commit the transaction " + transactionId);
-                manager.commit(transactionId);
-            } else {
-                RMHashMap data = transactionManager.getActiveTransaction(transactionId).getLocalBuffer();
-                synchronized (data) {
-                    Set<String> keyset = data.keySet();
-                    for (String key : keyset) {
-                        m_data.put(key, data.get(key));
-                    }
-                }
-            }
+        // fetched once: an abort from another thread may finish the transaction in the meantime
+        Transaction transaction = transactionManager.getActiveTransaction(transactionId);
+        if (transaction == null) {
+            throw new TransactionAbortedException(transactionId, "The transaction " + transactionId + " has been aborted");
+        }
+        if (!transaction.startCommit()) {
+            // being aborted for an older transaction
+            abortIfActive(transactionId);
+            throw new TransactionAbortedException(transactionId, "The transaction " + transactionId + " has been wounded by an older transaction");
+        }
+        ArrayList<IResourceManager> managers = transaction.getManagers();
+
+        if (managers.size() == 1) {
+            // a single participant decides alone: it commits in one phase, without a vote or a logged decision
+            commitOnePhase(transactionId, transaction, managers.get(0));
+        } else if (managers.size() > 1) {
+            commitTwoPhase(transactionId, transaction, managers);
         }
 
         // some clean up for the database
@@ -677,6 +853,90 @@ public class RMIMiddleware implements IResourceManager {
         return true;
     }
 
+    private void commitOnePhase(int xid, Transaction transaction, IResourceManager manager) throws TransactionAbortedException {
+        try {
+            if (manager == this) {
+                commitCustomersOnePhase(xid, transaction);
+            } else {
+                manager.commit(xid);
+            }
+        } catch (Exception e) {
+            // the resource manager aborted the transaction, or did not answer and the outcome is not known here
+            System.out.println("Could not commit the transaction " + xid + " in one phase: " + e);
+            abortLocally(xid);
+            throw new TransactionAbortedException(xid, "The resource manager could not commit the transaction " + xid);
+        }
+    }
+
+    private void commitCustomersOnePhase(int xid, Transaction transaction) throws TransactionAbortedException, IOException {
+        if (!m_versions.validate(xid, transaction.getReads(), transaction.getBases(), transaction.getWrites(), transaction.getCommutativeWrites()))
+            throw new TransactionAbortedException(xid, "The transaction " + xid + " read customers that have changed since");
+        RMHashMap data = transaction.getWriteSet(m_data);
+        try {
+            m_store.commit(xid, data);
+        } catch (IOException e) {
+            m_versions.release(xid, data.keySet());
+            throw e;
+        }
+        m_versions.commit(xid, data.keySet());
+    }
+
+    private void commitTwoPhase(int xid, Transaction transaction, ArrayList<IResourceManager> managers) throws TransactionAbortedException {
+        // phase one: the related resource managers prepare in parallel and vote. The ones that only read
+        // are done and left out of the decision and of phase two
+        ArrayList<Future<Vote>> votes = prepareAll(xid, managers);
+        ArrayList<IResourceManager> updated = new ArrayList<>();
+        boolean commit = true;
+        for (int i = 0; i < managers.size(); i++) {
+            Vote vote;
+            try {
+                vote = votes.get(i).get(PREPARE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                System.out.println("No vote for the transaction " + xid + ": " + e);
+                vote = Vote.NO;
+            }
+            if (vote != Vote.READ_ONLY) {
+                updated.add(managers.get(i));
+            }
+            if (vote == Vote.NO) {
+                commit = false;
+            }
+        }
+        if (updated.isEmpty()) {
+            System.out.println("The transaction " + xid + " is read only");
+            return;
+        }
+
+        // the decision is logged before anyone is told to commit, a restart repeats phase two
+        String[] participants = participantNames(updated);
+        if (commit) {
+            try {
+                m_store.decide(xid, participants);
+            } catch (IOException e) {
+                System.out.println("Could not log the decision for the transaction " + xid + ": " + e.getMessage());
+                commit = false;
+            }
+        }
+
+        if (!commit) {
+            abortParticipants(xid, updated);
+            abortLocally(xid);
+            throw new TransactionAbortedException(xid, "A resource manager could not prepare the transaction " + xid);
+        }
+
+        // phase two: the customers are committed here while the resource managers commit in parallel
+        if (updated.contains(this)) {
+            commitCustomers(xid, transaction.getWriteSet(m_data));
+        }
+        finishCommit(xid, participants);
+    }
+
+    private void abortLocally(int xid) {
+        transactionManager.updateActiveTransaction(xid, null);
+        transactionManager.addInactiveTransaction(xid, InactiveStatus.ABORTED);
+        lockManager.UnlockAll(xid);
+    }
+
     @Override
     public void abort(int transactionId) throws RemoteException, InvalidTransactionException {
         System.out.println("Start to abort the transaction " + transactionId);
@@ -687,14 +947,20 @@ public class RMIMiddleware implements IResourceManager {
                     (transactionId, "The transaction " + transactionId + " has already been aborted");
         }
 
-        // tell the related resource managers to abort the transaction
-        for (IResourceManager manager : transactionManager.getActiveTransaction(transactionId).getManagers()) {
-            if (!("Customer").equals(manager.getName())) {
-                System.out.println("Tell " + manager.getName() + " to abort the transaction " + transactionId);
-                manager.abort(transactionId);
-            }
+        // the reaper, the wound handler, executeTransaction and the client may all finish the transaction, so
+        // it is fetched once. Once it has started to commit only its coordinator finishes it: the resource
+        // managers may have voted yes and the decision may be logged already
+        Transaction transaction = transactionManager.getActiveTransaction(transactionId);
+        if (transaction == null) {
+            throw new InvalidTransactionException(transactionId, "The transaction " + transactionId + " has already finished");
+        }
+        if (!transaction.wound()) {
+            throw new InvalidTransactionException(transactionId, "The transaction " + transactionId + " is committing, it cannot be aborted");
         }
 
+        // tell the related resource managers to abort the transaction
+        abortParticipants(transactionId, transaction.getManagers());
+
         // some clean up for the database
         transactionManager.updateActiveTransaction(transactionId, null);
         transactionManager.addInactiveTransaction(transactionId, InactiveStatus.ABORTED);
@@ -703,6 +969,235 @@ public class RMIMiddleware implements IResourceManager {
         lockManager.UnlockAll(transactionId);
     }
 
+    @Override
+    public TransactionResult executeTransaction(List<Operation> operations) throws RemoteException {
+        // the whole transaction runs here, the client only waits for this one call
+        int xid = start();
+        ArrayList<Object> results = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            try {
+                Object result = operation.execute(this, xid);
+                results.add(result);
+                if (!operation.holds(result)) {
+                    System.out.println("The operation " + i + " of the transaction " + xid + " failed its condition: " + operation);
+                    abortIfActive(xid);
+                    return TransactionResult.aborted(xid, results, i, operation + " returned " + result);
+                }
+            } catch (TransactionAbortedException e) {
+                // aborted by a deadlock or by the time to live
+                return TransactionResult.aborted(xid, results, i, e.getMessage());
+            } catch (InvalidTransactionException | RemoteException | RuntimeException e) {
+                // the client never learns the xid, the transaction must not be left holding its locks
+                System.out.println("The operation " + i + " of the transaction " + xid + " failed: " + e);
+                abortIfActive(xid);
+                return TransactionResult.aborted(xid, results, i, e.toString());
+            }
+        }
+        try {
+            commit(xid);
+        } catch (TransactionAbortedException | InvalidTransactionException e) {
+            return TransactionResult.aborted(xid, results, -1, e.getMessage());
+        } catch (RuntimeException e) {
+            System.out.println("The commit of the transaction " + xid + " failed: " + e);
+            abortIfActive(xid);
+            return TransactionResult.aborted(xid, results, -1, e.toString());
+        }
+        return TransactionResult.committed(xid, results);
+    }
+
+    private void abortIfActive(int xid) throws RemoteException {
+        if (transactionManager.getActiveTransaction(xid) == null)
+            return;
+        try {
+            abort(xid);
+        } catch (InvalidTransactionException e) {
+            // finished in the meantime
+        }
+    }
+
+    // Call prepare on every manager in parallel, the middleware itself included, the votes are in the same order
+    private ArrayList<Future<Vote>> prepareAll(final int xid, ArrayList<IResourceManager> managers) {
+        ArrayList<Future<Vote>> votes = new ArrayList<>();
+        for (final IResourceManager manager : managers) {
+            votes.add(coordinator.submit(new Callable<Vote>() {
+                @Override
+                public Vote call() throws Exception {
+                    return manager.prepare(xid);
+                }
+            }));
+        }
+        return votes;
+    }
+
+    // The abort is not logged by the coordinator: a transaction without a logged decision is presumed
+    // to have aborted when the middleware recovers
+    private void abortParticipants(final int xid, ArrayList<IResourceManager> managers) {
+        ArrayList<Future<Boolean>> results = new ArrayList<>();
+        for (final IResourceManager manager : managers) {
+            if (manager == this) {
+                continue;
+            }
+            results.add(coordinator.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    manager.abort(xid);
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            try {
+                result.get();
+            } catch (Exception e) {
+                System.out.println("Could not abort the transaction " + xid + ": " + e);
+            }
+        }
+        Transaction transaction = transactionManager.getActiveTransaction(xid);
+        if (transaction != null && transaction.isPrepared()) {
+            try {
+                m_store.abortPrepared(xid);
+            } catch (IOException e) {
+                System.out.println("Could not log the abort of the transaction " + xid + ": " + e.getMessage());
+            }
+        }
+        if (transaction != null) {
+            m_versions.release(xid, transaction.getWrites());
+        }
+    }
+
+    private void commitCustomers(int xid, RMHashMap data) {
+        try {
+            m_store.commitPrepared(xid, data);
+        } catch (IOException e) {
+            // the decision is logged, the customers are committed when the middleware recovers
+            System.out.println("Could not log the commit of the customers for the transaction " + xid + ": " + e.getMessage());
+            return;
+        }
+        m_versions.commit(xid, data.keySet());
+    }
+
+    // The names of the resource managers taking part, under which they are found in serverToManagerMap
+    private String[] participantNames(ArrayList<IResourceManager> managers) {
+        ArrayList<String> names = new ArrayList<>();
+        for (Map.Entry<String, IResourceManager> entry : serverToManagerMap.entrySet()) {
+            if (managers.contains(entry.getValue())) {
+                names.add(entry.getKey());
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    // Tell the participants of a decided transaction to commit in parallel, and keep telling the ones
+    // that could not be reached until they have been
+    private void finishCommit(final int xid, String[] participants) {
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<Future<Boolean>> results = new ArrayList<>();
+        for (final String name : participants) {
+            final IResourceManager manager = serverToManagerMap.get(name);
+            names.add(name);
+            results.add(coordinator.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    System.out.println("Tell " + name + " to commit the transaction " + xid);
+                    return manager.commit(xid);
+                }
+            }));
+        }
+
+        final ArrayList<String> unreached = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                // an invalid transaction has been committed already, by an earlier attempt
+                if (!(e.getCause() instanceof InvalidTransactionException)) {
+                    System.out.println("Could not tell " + names.get(i) + " to commit the transaction " + xid + ": " + e.getCause());
+                    unreached.add(names.get(i));
+                }
+            } catch (InterruptedException e) {
+                unreached.add(names.get(i));
+            }
+        }
+
+        if (unreached.isEmpty()) {
+            try {
+                m_store.end(xid);
+            } catch (IOException e) {
+                System.out.println("Could not log the end of the transaction " + xid + ": " + e.getMessage());
+            }
+            return;
+        }
+        coordinator.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (String name : unreached) {
+                    reconnect(name);
+                }
+                finishCommit(xid, unreached.toArray(new String[unreached.size()]));
+            }
+        });
+    }
+
+    // Look the resource manager up again, it may have restarted since
+    private void reconnect(String name) {
+        for (int i = 0; i < server_names.length; i++) {
+            if (server_names[i].equals(name)) {
+                connectServer(server_host_names[i], server_ports[i], name);
+            }
+        }
+    }
+
+    // Finish the commits that were decided before the middleware stopped, and abort the transactions
+    // that were prepared without a decision, here and on the resource managers: without a decision
+    // logged, the transaction cannot have committed anywhere
+    public void recoverCommits() {
+        HashMap<Integer, String[]> unfinished = m_store.getUnfinished();
+        for (Map.Entry<Integer, HashMap<String, Delta>> inDoubt : m_store.getInDoubt().entrySet()) {
+            try {
+                if (unfinished.containsKey(inDoubt.getKey())) {
+                    Transaction transaction = new Transaction(inDoubt.getKey());
+                    for (Map.Entry<String, Delta> entry : inDoubt.getValue().entrySet()) {
+                        transaction.updateData(inDoubt.getKey(), entry.getKey(), entry.getValue());
+                    }
+                    m_store.commitPrepared(inDoubt.getKey(), transaction.getWriteSet(m_data));
+                } else {
+                    m_store.abortPrepared(inDoubt.getKey());
+                }
+            } catch (IOException e) {
+                System.out.println("Could not recover the transaction " + inDoubt.getKey() + ": " + e.getMessage());
+            }
+        }
+        for (Map.Entry<Integer, String[]> decided : unfinished.entrySet()) {
+            System.out.println("Finishing the commit of the transaction " + decided.getKey());
+            finishCommit(decided.getKey(), decided.getValue());
+        }
+        for (Map.Entry<String, IResourceManager> participant : serverToManagerMap.entrySet()) {
+            Set<Integer> inDoubt;
+            try {
+                inDoubt = participant.getValue().getInDoubt();
+            } catch (RemoteException e) {
+                System.out.println("Could not ask " + participant.getKey() + " for its prepared transactions: " + e.getMessage());
+                continue;
+            }
+            for (int xid : inDoubt) {
+                if (unfinished.containsKey(xid))
+                    continue;
+                System.out.println("Aborting the transaction " + xid + " prepared on " + participant.getKey() + " without a decision");
+                try {
+                    participant.getValue().abort(xid);
+                } catch (Exception e) {
+                    System.out.println("Could not abort the transaction " + xid + " on " + participant.getKey() + ": " + e);
+                }
+            }
+        }
+    }
+
     @Override
     public boolean shutdown() throws RemoteException {
         System.out.println("Start to shutdown the servers");
@@ -749,8 +1244,33 @@ public class RMIMiddleware implements IResourceManager {
         return item.getPrice();
     }
 
+    // lock a whole set of data items at once, see LockManager.lockAll
+    public void getLocks(int xid, Map<String, TransactionLockObject.LockType> locks)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        if (concurrencyControl == ConcurrencyControl.OPTIMISTIC)
+            return;
+        try {
+            if (!lockManager.lockAll(xid, locks)) {
+                System.out.println("Failed to get the locks for " + locks.keySet());
+                throw new InvalidTransactionException(xid, "The lock manager has failed to get the locks for " + locks.keySet());
+            }
+        } catch (DeadlockException e) {
+            System.out.println("Deadlock has happened");
+            System.out.println("The transaction " + xid + " would be aborted...");
+            abort(xid);
+            throw new TransactionAbortedException(xid, "The transaction has been aborted because of a deadlock");
+        }
+    }
+
+    @Override
+    public String dumpLocks() throws RemoteException {
+        return lockManager.dump();
+    }
+
     public void getLock(int xid, String data, TransactionLockObject.LockType lockType)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        if (concurrencyControl == ConcurrencyControl.OPTIMISTIC)
+            return;
         try {
             if (!lockManager.Lock(xid, data, lockType)) {
                 // there are some exceptions on getting the lock
@@ -768,19 +1288,23 @@ public class RMIMiddleware implements IResourceManager {
     /***************************************************************************/
     //winnie
     @Override
-    public String analyticsFlight(int xid, int quantity) throws RemoteException, InvalidTransactionException {
+    public String analyticsFlight(int xid, int quantity) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
+        // the scan reads a snapshot of the resource manager, it needs no lock and does not wait for the reservations
+        enlist(xid, serverToManagerMap.get("Flights"));
         System.out.println("The request has been forwarded to Flight Resource Manager...");
         return serverToManagerMap.get("Flights").analyticsFlight(xid, quantity);
     }
 
     @Override
-    public String analyticsRoom(int xid, int quantity) throws RemoteException, InvalidTransactionException {
+    public String analyticsRoom(int xid, int quantity) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
+        enlist(xid, serverToManagerMap.get("Rooms"));
         System.out.println("The request has been forwarded to Room Resource Manager...");
         return serverToManagerMap.get("Rooms").analyticsRoom(xid, quantity);
     }
 
     @Override
-    public String analyticsCar(int xid, int quantity) throws RemoteException, InvalidTransactionException {
+    public String analyticsCar(int xid, int quantity) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
+        enlist(xid, serverToManagerMap.get("Cars"));
         System.out.println("The request has been forwarded to Car Resource Manager...");
         return serverToManagerMap.get("Cars").analyticsCar(xid, quantity);
     }
@@ -794,28 +1318,22 @@ public class RMIMiddleware implements IResourceManager {
     }*/
 
     //---------------------------------------------------------------------------
-    // these three methods are bundled together to handle the local copy issue
-    // if there is the local copy of something
-    // use it
-    // otherwise move the data to local copy and read or write it
+    // these methods are bundled together to handle the local changes
+    // a transaction keeps what it changes, not copies of what it touched
+    // reads apply its changes to the committed data, which the locks keep from changing
     // Reads a data item
     protected RMItem readData(int xid, String key) throws InvalidTransactionException {
         if (!transactionManager.isActive(xid))
             throw new InvalidTransactionException(xid, "This is not a valid transaction");
 
         Transaction transaction = transactionManager.getActiveTransaction(xid);
-        if (!transaction.contains(key)) {
-            synchronized (m_data) {
-                RMItem item = m_data.get(key);
-                if (item != null) {
-                    transaction.writeData(xid, key, (RMItem) item.clone());
-                } else {
-                    transaction.writeData(xid, key, null);
-                }
-            }
+        RMItem item;
+        long version;
+        synchronized (m_data) {
+            item = m_data.get(key);
+            version = m_versions.get(key);
         }
-
-        return transaction.readData(xid, key);
+        return transaction.readData(xid, key, item, version);
     }
 
     // Writes a data item
@@ -825,7 +1343,6 @@ public class RMIMiddleware implements IResourceManager {
 
         // write a copy locally
         // not yet pushed up to the real database
-        readData(xid, key);
         Transaction transaction = transactionManager.getActiveTransaction(xid);
         transaction.writeData(xid, key, value);
     }
@@ -837,10 +1354,18 @@ public class RMIMiddleware implements IResourceManager {
 
         // write a copy locally
         // not yet pushed up to the real database
-        readData(xid, key);
         Transaction transaction = transactionManager.getActiveTransaction(xid);
         transaction.writeData(xid, key, null);
     }
+
+    // Changes a data item without copying it, the change is applied to the committed one on commit
+    protected void updateData(int xid, String key, Delta delta) throws InvalidTransactionException {
+        if (!transactionManager.isActive(xid))
+            throw new InvalidTransactionException(xid, "This is not a valid transaction");
+
+        Transaction transaction = transactionManager.getActiveTransaction(xid);
+        transaction.updateData(xid, key, delta);
+    }
     //---------------------------------------------------------------------------
 
     // Deletes the encar item
@@ -906,13 +1431,10 @@ public class RMIMiddleware implements IResourceManager {
             Trace.warn("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") failed--No more items");
             return false;
         } else {
-            customer.reserve(key, location, item.getPrice());
-            writeData(xid, customer.getKey(), customer);
+            updateData(xid, customer.getKey(), new ReservationDelta(key, location, item.getPrice()));
 
             // Decrease the number of available items in the storage
-            item.setCount(item.getCount() - 1);
-            item.setReserved(item.getReserved() + 1);
-            writeData(xid, item.getKey(), item);
+            updateData(xid, item.getKey(), new ReservableDelta(-1, 1, 0));
 
             Trace.info("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") succeeded");
             return true;
@@ -926,13 +1448,14 @@ public class RMIMiddleware implements IResourceManager {
             // throw the exceptions accordingly
             System.out.println("Some error has occurred for this transaction...");
             System.out.println("Please check the feedback for the exception on the client side...");
-            if (transactionManager.getInactiveTransaction(xid) == null) {
+            InactiveStatus status = transactionManager.getInactiveTransaction(xid);
+            if (status == null) {
                 throw new InvalidTransactionException(xid, "TM: There is no transaction " + xid);
             }
-            if (transactionManager.getInactiveTransaction(xid).equals(InactiveStatus.COMMITTED)) {
+            if (status.equals(InactiveStatus.COMMITTED)) {
                 throw new InvalidTransactionException(xid, "TM: The transaction has already been committed before.");
             }
-            if (transactionManager.getInactiveTransaction(xid).equals(InactiveStatus.ABORTED)) {
+            if (status.equals(InactiveStatus.ABORTED)) {
                 throw new TransactionAbortedException(xid, "TM: The transaction has been aborted before.");
             }
         } else {
@@ -959,4 +1482,29 @@ public class RMIMiddleware implements IResourceManager {
         System.out.println("Got the lock!");
         distribute(xid, manager);
     }
+
+    // Whether the queries of the transaction read the last committed values, without locks and without
+    // enlisting the resource managers: a query then costs a single call and never blocks a reservation
+    public boolean readsCommitted(int xid) throws TransactionAbortedException, InvalidTransactionException {
+        checkIllegalTransaction(xid);
+        Transaction transaction = transactionManager.getActiveTransaction(xid);
+        return transaction != null && transaction.getIsolation() == IsolationLevel.READ_COMMITTED;
+    }
+
+    private int queryCommittedNum(int xid, String key) throws RemoteException {
+        ReservableItem item = readCommitted(xid, key);
+        return item == null ? 0 : item.getCount();
+    }
+
+    private int queryCommittedPrice(int xid, String key) throws RemoteException {
+        ReservableItem item = readCommitted(xid, key);
+        return item == null ? 0 : item.getPrice();
+    }
+
+    // Enlist a resource manager in the transaction without locking anything
+    public void enlist(int xid, IResourceManager manager)
+            throws TransactionAbortedException, InvalidTransactionException, RemoteException {
+        checkIllegalTransaction(xid);
+        distribute(xid, manager);
+    }
 }
@@ -1,3 +1,3 @@
-# Usage: ./run_middleware_test.sh
+# Usage: ./run_middleware_test.sh [<flights_host> <cars_host> <rooms_host> [<deadlock_policy> [<escalation_threshold> [<checkpoint_interval_ms> [<concurrency_control>]]]]]
 
-java -Djava.security.policy=java.policy -cp ../Server/RMIAll.jar:. RMIMiddleware $1 $2 $3
\ No newline at end of file
+java -Djava.security.policy=java.policy -cp ../Server/RMIAll.jar:. RMIMiddleware $1 $2 $3 $4 $5 $6 $7
\ No newline at end of file
@@ -11,6 +11,8 @@ public class Customer extends RMItem
 {
 	private int m_ID;
 	private RMHashMap m_reservations;
+	// Whether m_reservations is shared with a copy, it is copied before it is modified then
+	private transient boolean m_shared = false;
 
 	public Customer(int id)
 	{
@@ -31,17 +33,30 @@ public class Customer extends RMItem
 
 	public void reserve(String key, String location, int price)
 	{
+		reserve(key, location, 1, price);
+	}
+
+	public void reserve(String key, String location, int count, int price)
+	{
+		if (m_shared)
+		{
+			RMHashMap reservations = new RMHashMap();
+			reservations.putAll(m_reservations);
+			m_reservations = reservations;
+			m_shared = false;
+		}
 		ReservedItem reservedItem = getReservedItem(key);
 		if (reservedItem == null)
 		{
 			// Customer doesn't already have a reservation for this resource, so create a new one now
-			reservedItem = new ReservedItem(key, location, 1, price);
+			reservedItem = new ReservedItem(key, location, count, price);
 		}
 		else
 		{
-			reservedItem.setCount(reservedItem.getCount() + 1);
+			// a new reserved item, the current one may be shared with a copy
 			// NOTE: latest price overrides existing price
-			reservedItem.setPrice(price);
+			reservedItem = new ReservedItem(reservedItem.getReservableItemKey(), reservedItem.getLocation(),
+				reservedItem.getCount() + count, price);
 		}
 		m_reservations.put(reservedItem.getKey(), reservedItem);
 	}
@@ -81,16 +96,19 @@ public class Customer extends RMItem
 		return Customer.getKey(getID());
 	}
 
+	// Not to be modified, the reservations may be shared with copies of the customer
 	public RMHashMap getReservations()
 	{
 		return m_reservations;
 	}
 
+	// The copy shares the reservations until one of them reserves, so copying does not depend on their number
 	public Object clone()
 	{
 		Customer obj = (Customer)super.clone();
 		obj.m_ID = m_ID;
-		obj.m_reservations = (RMHashMap)m_reservations.clone();
+		m_shared = true;
+		obj.m_shared = true;
 		return obj;
 	}
 }
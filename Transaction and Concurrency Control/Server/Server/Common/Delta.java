@@ -0,0 +1,41 @@
+package Server.Common;
+
+import java.io.Serializable;
+
+/* A change made by a transaction to one item, kept in its buffer until it commits
+ *
+ * Rather than a copy of the whole item, a transaction records what it changes:
+ * the new value of an item it creates, replaces or deletes, the adjustments of
+ * the counts of a reservable item, or the reservations added to a customer.
+ * Reads apply the change to the committed item, and the commit applies it once
+ * more to get the item that replaces the committed one. The committed item
+ * itself is never modified. A prepared transaction logs its changes. */
+
+public abstract class Delta implements Serializable
+{
+	// The changes are read back from the log, possibly by a later build
+	private static final long serialVersionUID = 1L;
+
+	// The item as the transaction sees it, a new object made from the committed one, or null if the
+	// item does not exist once changed
+	public abstract RMItem apply(RMItem committed);
+
+	// The change made by this one followed by a later one to the same item
+	public Delta merge(Delta later)
+	{
+		if (later instanceof Overwrite) {
+			return later;
+		}
+		return combine(later);
+	}
+
+	// Combine with a later change that does not overwrite the item
+	protected abstract Delta combine(Delta later);
+
+	// Whether the change can be applied whatever was committed before it, so that it is resolved against
+	// the committed item when it commits instead of holding the item from the validation on
+	public boolean commutes()
+	{
+		return false;
+	}
+}
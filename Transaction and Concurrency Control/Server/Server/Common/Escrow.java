@@ -0,0 +1,188 @@
+package Server.Common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Decrements of the available counts of a resource manager that are not committed yet
+ *
+ * Reservations under escrow do not exclude each other: each one takes its
+ * amount out of the available count as long as the count cannot fall below
+ * zero once every pending decrement of the other transactions commits. The
+ * count a transaction sees already has its own decrements applied. A
+ * transaction gives its decrements back once its commit has been applied to
+ * the data, or when it aborts; in between they are counted twice, which can
+ * only refuse a reservation, never oversell.
+ *
+ * An item reserved by enough transactions at once becomes hot: from then on
+ * its count is kept by a SplitCounter, and its reservations no longer go
+ * through the monitor of the escrow. The split counter starts from the
+ * committed count less every pending decrement, and is spread again from the
+ * committed count whenever a commit changes the item other than by reserving
+ * it. The item cools back to a single count once no transaction has a
+ * reservation of it pending, so the split only lasts while the reservations
+ * of the item actually overlap. */
+
+public class Escrow
+{
+	// Reads the available count of an item, as a transaction sees it or as committed
+	public interface Count
+	{
+		public int get(String key);
+	}
+
+	// The number of transactions with reservations of an item pending at once that makes it hot
+	public static final int HOT_THRESHOLD = 4;
+	public static final int SUB_COUNTERS = 8;
+
+	// Guarded by this: the pending decrements of the items that are not hot by key, by transaction then
+	// key, and the number of transactions with decrements of each key
+	private HashMap<String, Integer> m_pending = new HashMap<String, Integer>();
+	private HashMap<Integer, HashMap<String, Integer>> m_transactions = new HashMap<Integer, HashMap<String, Integer>>();
+	private HashMap<String, Integer> m_reservers = new HashMap<String, Integer>();
+
+	private ConcurrentHashMap<String, SplitCounter> m_hot = new ConcurrentHashMap<String, SplitCounter>();
+
+	// Take the amount out of the count of the item if the decrements pending for the other transactions
+	// leave enough. The count, as the transaction sees it, is read holding this, so that no transaction
+	// gives its decrements back in between; the committed count is read only to split the item. Returns
+	// false if there is not enough left.
+	public boolean reserve(int xid, String key, int amount, Count count, Count committed)
+	{
+		while (true) {
+			SplitCounter counter = m_hot.get(key);
+			if (counter == null) {
+				synchronized (this) {
+					counter = m_hot.get(key);
+					if (counter == null) {
+						int left = count.get(key) - pendingForOthers(xid, key);
+						if (left < amount) {
+							return false;
+						}
+						HashMap<String, Integer> own = m_transactions.get(xid);
+						if (own == null) {
+							own = new HashMap<String, Integer>();
+							m_transactions.put(xid, own);
+						}
+						Integer taken = own.get(key);
+						own.put(key, taken == null ? amount : taken + amount);
+						m_pending.put(key, get(m_pending, key) + amount);
+						if (taken == null) {
+							m_reservers.put(key, get(m_reservers, key) + 1);
+							if (get(m_reservers, key) >= HOT_THRESHOLD) {
+								// not the count the transaction sees, which has its own changes that are not
+								// committed, but what the other transactions can count on
+								split(key, committed.get(key) - get(m_pending, key));
+							}
+						}
+						return true;
+					}
+				}
+			}
+			switch (counter.take(xid, amount)) {
+				case TAKEN:
+					return true;
+				case SHORT:
+					return false;
+				default:
+					// cooled meanwhile, the item has a single count again
+					m_hot.remove(key, counter);
+			}
+		}
+	}
+
+	// The commit of a transaction has been applied: its decrements are in the committed counts now. The
+	// hot items it wrote without reserving them are spread again from their committed count.
+	public void commit(int xid, Set<String> writes, Count committed)
+	{
+		synchronized (this) {
+			finish(xid);
+		}
+		for (String key : writes) {
+			SplitCounter counter = m_hot.get(key);
+			if (counter != null) {
+				if (!counter.finish(xid, false)) {
+					counter.resync(key, committed);
+				}
+				cool(key, counter);
+			}
+		}
+	}
+
+	// Give back the decrements of a transaction that aborted
+	public void release(int xid)
+	{
+		synchronized (this) {
+			finish(xid);
+		}
+		for (Map.Entry<String, SplitCounter> hot : m_hot.entrySet()) {
+			if (hot.getValue().finish(xid, true)) {
+				cool(hot.getKey(), hot.getValue());
+			}
+		}
+	}
+
+	// Go back to a single count for a hot item without reservations pending. Nothing is pending for it in
+	// the maps of this either, they were moved to the split counter.
+	private void cool(String key, SplitCounter counter)
+	{
+		if (counter.retire()) {
+			m_hot.remove(key, counter);
+			Trace.info("ESCROW::cool(" + key + ") is no longer hot");
+		}
+	}
+
+	// Hand the item over to a split counter, with what is left and the decrements pending. Called
+	// holding this.
+	private void split(String key, int left)
+	{
+		HashMap<Integer, Integer> taken = new HashMap<Integer, Integer>();
+		for (Map.Entry<Integer, HashMap<String, Integer>> transaction : m_transactions.entrySet()) {
+			Integer amount = transaction.getValue().remove(key);
+			if (amount != null) {
+				taken.put(transaction.getKey(), amount);
+			}
+		}
+		m_pending.remove(key);
+		m_reservers.remove(key);
+		m_hot.put(key, new SplitCounter(SUB_COUNTERS, left, taken));
+		Trace.info("ESCROW::split(" + key + ") is hot, " + left + " left over " + SUB_COUNTERS + " sub-counters");
+	}
+
+	// Called holding this
+	private void finish(int xid)
+	{
+		HashMap<String, Integer> own = m_transactions.remove(xid);
+		if (own == null) {
+			return;
+		}
+		for (Map.Entry<String, Integer> entry : own.entrySet()) {
+			String key = entry.getKey();
+			int left = get(m_pending, key) - entry.getValue();
+			if (left == 0) {
+				m_pending.remove(key);
+			} else {
+				m_pending.put(key, left);
+			}
+			int reservers = get(m_reservers, key) - 1;
+			if (reservers == 0) {
+				m_reservers.remove(key);
+			} else {
+				m_reservers.put(key, reservers);
+			}
+		}
+	}
+
+	private int pendingForOthers(int xid, String key)
+	{
+		HashMap<String, Integer> own = m_transactions.get(xid);
+		return get(m_pending, key) - (own == null ? 0 : get(own, key));
+	}
+
+	private static int get(HashMap<String, Integer> counts, String key)
+	{
+		Integer count = counts.get(key);
+		return count == null ? 0 : count;
+	}
+}
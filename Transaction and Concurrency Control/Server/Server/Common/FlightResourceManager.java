@@ -4,10 +4,19 @@ import Server.Exceptions.InvalidTransactionException;
 import Server.Exceptions.TransactionAbortedException;
 import Server.Interface.IResourceManager;
 import Server.Transaction.InactiveStatus;
+import Server.Transaction.IsolationLevel;
 import Server.Transaction.Transaction;
 import Server.Transaction.LocalBuffer;
+import Server.Transaction.Operation;
+import Server.Transaction.TransactionResult;
+import Server.Transaction.Vote;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 public class FlightResourceManager implements IResourceManager {
@@ -15,10 +24,44 @@ public class FlightResourceManager implements IResourceManager {
     protected String m_name = "";
     protected RMHashMap m_data = new RMHashMap();
     protected LocalBuffer localBuffer;
+    // logs the commits and checkpoints m_data, which it recovers on restart
+    protected PersistentStore m_store;
+    // the versions of the items in m_data, the reads of a transaction are validated against them on commit
+    protected VersionTable m_versions = new VersionTable();
+    // the versions of the items committed to m_data that the snapshots of the transactions still see
+    protected MultiVersionStore m_history;
+    // the reservations not committed yet, so that they can run side by side without overselling
+    protected Escrow m_escrow = new Escrow();
+    // the available counts as committed
+    private final Escrow.Count m_committedCounts = new Escrow.Count() {
+        @Override
+        public int get(String key) {
+            ReservableItem item = (ReservableItem)getCommitted(key);
+            return item == null ? 0 : item.getCount();
+        }
+    };
+
+    public FlightResourceManager(String name) throws IOException {
+        this(name, WriteAheadLog.FLUSH_INTERVAL, WriteAheadLog.BATCH_SIZE, PersistentStore.CHECKPOINT_INTERVAL);
+    }
 
-    public FlightResourceManager(String name){
+    public FlightResourceManager(String name, long flushInterval, int batchSize, long checkpointInterval) throws IOException {
         m_name = name;
         localBuffer = new LocalBuffer();
+        m_store = new PersistentStore(name, m_data, flushInterval, batchSize, checkpointInterval);
+        m_history = new MultiVersionStore(m_data);
+
+        // the transactions prepared before a crash wait for the coordinator to tell their outcome again
+        for (Map.Entry<Integer, HashMap<String, Delta>> inDoubt : m_store.getInDoubt().entrySet()) {
+            Transaction transaction = new Transaction(inDoubt.getKey());
+            for (Map.Entry<String, Delta> entry : inDoubt.getValue().entrySet()) {
+                transaction.updateData(inDoubt.getKey(), entry.getKey(), entry.getValue());
+            }
+            transaction.setPrepared(true);
+            m_versions.validate(inDoubt.getKey(), transaction.getReads(), transaction.getBases(), transaction.getWrites(), transaction.getCommutativeWrites());
+            localBuffer.updateActiveTransaction(inDoubt.getKey(), transaction);
+            Trace.info("RM::recover(" + inDoubt.getKey() + ") is prepared, waiting for its outcome");
+        }
     }
     @Override
     public boolean addFlight(int xid, int flightNum, int flightSeats, int flightPrice) throws RemoteException, InvalidTransactionException {
@@ -35,13 +78,8 @@ public class FlightResourceManager implements IResourceManager {
         else
         {
             // Add seats to existing flight and update the price if greater than zero
-            curObj.setCount(curObj.getCount() + flightSeats);
-            if (flightPrice > 0)
-            {
-                curObj.setPrice(flightPrice);
-            }
-            writeData(xid, curObj.getKey(), curObj);
-            Trace.info("RM::addFlight(" + xid + ") modified existing flight " + flightNum + ", seats=" + curObj.getCount() + ", price=$" + flightPrice);
+            updateData(xid, curObj.getKey(), new ReservableDelta(flightSeats, 0, flightPrice));
+            Trace.info("RM::addFlight(" + xid + ") modified existing flight " + flightNum + ", seats=" + (curObj.getCount() + flightSeats) + ", price=$" + flightPrice);
         }
         return true;
     }
@@ -167,9 +205,7 @@ public class FlightResourceManager implements IResourceManager {
         Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") has reserved " + key + " " +  count +  " times");
         ReservableItem item  = (ReservableItem)readData(xid, key);
         Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") has reserved " + key + " which is reserved " +  item.getReserved() +  " times and is still available " + item.getCount() + " times");
-        item.setReserved(item.getReserved() - count);
-        item.setCount(item.getCount() + count);
-        writeData(xid, item.getKey(), item);
+        updateData(xid, item.getKey(), new ReservableDelta(count, -count, 0));
         return true;
     }
 
@@ -178,6 +214,81 @@ public class FlightResourceManager implements IResourceManager {
         return 0;
     }
 
+    @Override
+    public int start(IsolationLevel isolation) throws RemoteException {
+        return 0;
+    }
+
+    @Override
+    public ReservableItem readCommitted(int xid, String key) throws RemoteException {
+        Trace.info("RM::readCommitted(" + xid + ", " + key + ") called");
+        RMItem item;
+        synchronized (m_data) {
+            item = m_data.get(key);
+        }
+        // a transaction sees its own changes, if it has made any here
+        Transaction transaction = localBuffer.getActiveTransaction(xid);
+        if (transaction != null)
+            item = transaction.readSnapshot(key, item);
+        return (ReservableItem) item;
+    }
+
+    // The committed item, not to be changed
+    private RMItem getCommitted(String key) {
+        synchronized (m_data) {
+            return m_data.get(key);
+        }
+    }
+
+    @Override
+    public TransactionResult executeTransaction(List<Operation> operations) throws RemoteException {
+        // the transactions are run by the middleware, which locks and commits across the resource managers
+        throw new RemoteException("Only the middleware runs transactions sent as a whole");
+    }
+
+    @Override
+    public Vote prepare(int transactionId) throws RemoteException, InvalidTransactionException {
+        System.out.println("Start to prepare the transaction " + transactionId);
+        if (!localBuffer.isActive(transactionId)) {
+            // vote no for a transaction aborted here, e.g. by a restart before it prepared
+            if (localBuffer.getInactiveTransaction(transactionId) == InactiveStatus.ABORTED)
+                return Vote.NO;
+            throw new InvalidTransactionException(transactionId, "This is not a valid transaction");
+        }
+
+        Transaction transaction = localBuffer.getActiveTransaction(transactionId);
+        // what it read must be unchanged, under optimistic concurrency control it read without locks
+        if (!m_versions.validate(transactionId, transaction.getReads(), transaction.getBases(), transaction.getWrites(), transaction.getCommutativeWrites())) {
+            System.out.println("The transaction " + transactionId + " read items that have changed since");
+            return Vote.NO;
+        }
+        if (transaction.isReadOnly()) {
+            // nothing to log or to apply, the transaction is over here and skips the second phase
+            endSnapshot(transaction);
+            localBuffer.updateActiveTransaction(transactionId, null);
+            localBuffer.addInactiveTransaction(transactionId, InactiveStatus.COMMITTED);
+            System.out.println("The transaction " + transactionId + " is read only here");
+            return Vote.READ_ONLY;
+        }
+        try {
+            // the changes that do not commute are resolved now, the others when the transaction commits
+            transaction.getWriteSet(m_data);
+            m_store.prepare(transactionId, transaction.getChanges());
+        } catch (IOException e) {
+            System.out.println("Could not log the prepare of the transaction " + transactionId + ": " + e.getMessage());
+            m_versions.release(transactionId, transaction.getWrites());
+            return Vote.NO;
+        }
+        transaction.setPrepared(true);
+        System.out.println("Prepared the transaction " + transactionId);
+        return Vote.YES;
+    }
+
+    @Override
+    public Set<Integer> getInDoubt() throws RemoteException {
+        return localBuffer.getPrepared();
+    }
+
     @Override
     public boolean commit(int transactionId) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         System.out.println("Start to commit the transaction " + transactionId);
@@ -185,15 +296,43 @@ public class FlightResourceManager implements IResourceManager {
         if(!localBuffer.isActive(transactionId))
             throw new InvalidTransactionException(transactionId, "This is not a valid transaction");
 
-        // put all the values that are in the memory into the database
-        RMHashMap buffer = localBuffer.getActiveTransaction(transactionId).getLocalBuffer();
-        synchronized (m_data) {
-            for (String key : buffer.keySet()) {
-                System.out.println("Update:(" + key + "," + buffer.get(key) + ") into the database");
-                m_data.put(key, buffer.get(key));
-            }
+        // a transaction committed in one phase is validated here, a prepared one already was
+        Transaction transaction = localBuffer.getActiveTransaction(transactionId);
+        if (!transaction.isPrepared() && !m_versions.validate(transactionId, transaction.getReads(), transaction.getBases(), transaction.getWrites(), transaction.getCommutativeWrites())) {
+            endSnapshot(transaction);
+            m_escrow.release(transactionId);
+            localBuffer.updateActiveTransaction(transactionId, null);
+            localBuffer.addInactiveTransaction(transactionId, InactiveStatus.ABORTED);
+            throw new TransactionAbortedException(transactionId, "The transaction " + transactionId + " read items that have changed since");
         }
 
+        // the write set is resolved against the commits before it, and applied once on disk in the same
+        // order: the log groups the fsyncs of concurrent commits. A prepared transaction only logs the
+        // outcome with it, its changes are on disk already
+        final Transaction committing = transaction;
+        final Set<String> commutative = transaction.getCommutativeWrites();
+        RMHashMap buffer;
+        try {
+            buffer = m_store.commit(transactionId, transaction.getWrites(), transaction.isPrepared(), new PersistentStore.Commit() {
+                @Override
+                public RMHashMap resolve(RMHashMap committed) {
+                    return committing.getWriteSet(committed);
+                }
+
+                @Override
+                public void applied(RMHashMap writeSet) {
+                    // installed before the items are released, so that the versions are in the order of the commits
+                    m_history.install(writeSet);
+                    m_versions.commit(committing.getXId(), writeSet.keySet(), commutative);
+                }
+            });
+        } catch (IOException e) {
+            throw new RemoteException("Could not log the commit of the transaction " + transactionId, e);
+        }
+        endSnapshot(transaction);
+        // the reservations are in the committed counts now
+        m_escrow.commit(transactionId, buffer.keySet(), m_committedCounts);
+
         // clean up the database
         localBuffer.updateActiveTransaction(transactionId, null);
         localBuffer.addInactiveTransaction(transactionId, InactiveStatus.COMMITTED);
@@ -208,6 +347,17 @@ public class FlightResourceManager implements IResourceManager {
             throw new InvalidTransactionException(transactionId, "This is not a valid transaction.");
         }
 
+        Transaction transaction = localBuffer.getActiveTransaction(transactionId);
+        if (transaction.isPrepared()) {
+            try {
+                m_store.abortPrepared(transactionId);
+            } catch (IOException e) {
+                throw new RemoteException("Could not log the abort of the transaction " + transactionId, e);
+            }
+        }
+        m_versions.release(transactionId, transaction.getWrites());
+        endSnapshot(transaction);
+        m_escrow.release(transactionId);
         localBuffer.updateActiveTransaction(transactionId, null);
         localBuffer.addInactiveTransaction(transactionId, InactiveStatus.ABORTED);
         System.out.println("Successfully abort the transaction " + transactionId);
@@ -254,6 +404,12 @@ public class FlightResourceManager implements IResourceManager {
         return item.getPrice();
     }
 
+    @Override
+    public String dumpLocks() throws RemoteException {
+        // the locks are held by the middleware, the resource managers have none
+        return null;
+    }
+
     /*@Override
     public String analytics(int xid) throws RemoteException {
         String result = "\nFor Flight part-----------\n";
@@ -272,29 +428,22 @@ public class FlightResourceManager implements IResourceManager {
 
     // Reads a data item
     //---------------------------------------------------------------------------
-    // these three methods are bundled together to handle the local copy issue
-    // if there is the local copy of something
-    // use it
-    // otherwise move the data to local copy and read or write it
+    // these methods are bundled together to handle the local changes
+    // a transaction keeps what it changes, not copies of what it touched
+    // reads apply its changes to the committed data, which the locks of the middleware keep from changing
     // Reads a data item
     protected RMItem readData(int xid, String key) throws InvalidTransactionException {
         if(!localBuffer.isActive(xid))
             throw new InvalidTransactionException(xid, "This is not a valid transaction");
 
         Transaction transaction = localBuffer.getActiveTransaction(xid);
-        if (!transaction.contains(key)) {
-            synchronized (m_data) {
-                RMItem item = m_data.get(key);
-                if (item != null) {
-                    transaction.writeData(xid, key, (RMItem) item.clone());
-                }
-                else {
-                    transaction.writeData(xid, key, null);
-                }
-            }
+        RMItem item;
+        long version;
+        synchronized (m_data) {
+            item = m_data.get(key);
+            version = m_versions.get(key);
         }
-
-        return transaction.readData(xid, key);
+        return transaction.readData(xid, key, item, version);
     }
 
     // Writes a data item
@@ -304,7 +453,6 @@ public class FlightResourceManager implements IResourceManager {
 
         // write a copy locally
         // not yet pushed up to the real database
-        readData(xid, key);
         Transaction transaction = localBuffer.getActiveTransaction(xid);
         transaction.writeData(xid, key, value);
     }
@@ -316,10 +464,36 @@ public class FlightResourceManager implements IResourceManager {
 
         // write a copy locally
         // not yet pushed up to the real database
-        readData(xid, key);
         Transaction transaction = localBuffer.getActiveTransaction(xid);
         transaction.writeData(xid, key, null);
     }
+
+    // Changes a data item without copying it, the change is applied to the committed one on commit
+    protected void updateData(int xid, String key, Delta delta) throws InvalidTransactionException {
+        if(!localBuffer.isActive(xid))
+            throw new InvalidTransactionException(xid, "This is not a valid transaction");
+
+        Transaction transaction = localBuffer.getActiveTransaction(xid);
+        transaction.updateData(xid, key, delta);
+    }
+
+    // The snapshot read by the scans of a transaction, begun by the first one so that they are all consistent
+    protected long getSnapshot(Transaction transaction) {
+        synchronized (transaction) {
+            if (transaction.getSnapshot() < 0)
+                transaction.setSnapshot(m_history.begin());
+            return transaction.getSnapshot();
+        }
+    }
+
+    protected void endSnapshot(Transaction transaction) {
+        synchronized (transaction) {
+            if (transaction.getSnapshot() >= 0) {
+                m_history.end(transaction.getSnapshot());
+                transaction.setSnapshot(-1);
+            }
+        }
+    }
     //---------------------------------------------------------------------------
 
     // Deletes the encar item
@@ -385,58 +559,69 @@ public class FlightResourceManager implements IResourceManager {
 //            return null;
 //        }
 
-        // Check if the item is available
-        ReservableItem item = (ReservableItem)readData(xid, key);
+        // Check if the item is available, counting the reservations of the other transactions that are not
+        // committed yet. The read is not validated on commit: reservations commute with each other
+        if(!localBuffer.isActive(xid))
+            throw new InvalidTransactionException(xid, "This is not a valid transaction");
+        final Transaction transaction = localBuffer.getActiveTransaction(xid);
+        // the reservation is applied to the item as committed then, which must not be deleted or repriced in between
+        transaction.readBase(key, m_versions.getOverwrites(key));
+        ReservableItem item = (ReservableItem)transaction.readSnapshot(key, getCommitted(key));
         if (item == null)
         {
             Trace.warn("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") failed--item doesn't exist");
             return null;
         }
-        else if (item.getCount() == 0)
+        // the count as the transaction sees it, read again by the escrow while no one gives decrements back
+        Escrow.Count seen = new Escrow.Count() {
+            @Override
+            public int get(String key) {
+                ReservableItem item = (ReservableItem)transaction.readSnapshot(key, getCommitted(key));
+                return item == null ? 0 : item.getCount();
+            }
+        };
+        if (!m_escrow.reserve(xid, key, 1, seen, m_committedCounts))
         {
             Trace.warn("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") failed--No more items");
             return null;
         }
-        else
-        {
-//            customer.reserve(key, location, item.getPrice());
-//            writeData(xid, customer.getKey(), customer);
+        // Decrease the number of available items in the storage
+        updateData(xid, key, new ReservableDelta(-1, 1, 0));
 
-            // Decrease the number of available items in the storage
-            item.setCount(item.getCount() - 1);
-            item.setReserved(item.getReserved() + 1);
-            writeData(xid, item.getKey(), item);
+        // the copy returned shows the reservation too
+        item = (ReservableItem)item.clone();
+        item.setCount(item.getCount() - 1);
+        item.setReserved(item.getReserved() + 1);
 
-            Trace.info("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") succeeded");
-            return item;
-        }
+        Trace.info("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") succeeded");
+        return item;
     }
     
     /***********************************************************************************************/
     //winnie--AnalyticsFlight
+    // reads the snapshot of the transaction, without waiting for the commits or making them wait
     public String readAllData(int xid, String idType,int quantity) throws InvalidTransactionException {
-        //System.out.println("3\n");
-        synchronized(m_data) {
-            //System.out.println("4\n");
-            String s = "\n--- BEGIN Analytics Result ---\n";
-            int value=0;
-            for (String key : m_data.keySet())
-            {
-                //System.out.println("5\n");
-                if(key.contains(idType)) {
-                    //String value = m_data.get(key).toString();
-                    ReservableItem curObj = (ReservableItem)readData(xid,key);
-                    value=curObj.getCount();
-
-                    if(value<=quantity) {
-                        s = s + "[Flight_Key= '" + key + "' ]  Remaining seats:" + value + "\n";
-                    }
-                }
+        if(!localBuffer.isActive(xid))
+            throw new InvalidTransactionException(xid, "This is not a valid transaction");
+
+        Transaction transaction = localBuffer.getActiveTransaction(xid);
+        RMHashMap items = m_history.scan(idType, getSnapshot(transaction));
+        String s = "\n--- BEGIN Analytics Result ---\n";
+        int value=0;
+        for (Map.Entry<String, RMItem> entry : items.entrySet())
+        {
+            ReservableItem curObj = (ReservableItem)transaction.readSnapshot(entry.getKey(), entry.getValue());
+            // deleted by the transaction
+            if(curObj == null)
+                continue;
+            value=curObj.getCount();
+
+            if(value<=quantity) {
+                s = s + "[Flight_Key= '" + entry.getKey() + "' ]  Remaining seats:" + value + "\n";
             }
-            s = s + "--- END Analytics Result ---";
-            return s;
         }
-
+        s = s + "--- END Analytics Result ---";
+        return s;
     }
     @Override
     public String analyticsFlight(int xid, int quantity) throws InvalidTransactionException {
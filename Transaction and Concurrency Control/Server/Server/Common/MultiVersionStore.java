@@ -0,0 +1,157 @@
+package Server.Common;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Committed versions of the items of a resource manager, for snapshot reads
+ *
+ * Every commit installs the items it writes as new versions tagged with the
+ * next commit timestamp, a deletion as a version without an item. A reader
+ * begins a snapshot, which is the timestamp of the last commit installed, and
+ * sees the newest version of each item that is not newer than it: the state
+ * after that commit, whatever is committed while it reads.
+ *
+ * Reads take no lock. The versions of an item form a chain from the newest,
+ * and a commit only publishes its timestamp once all its versions are in
+ * place. The versions older than the one the oldest active snapshot sees are
+ * unlinked when the item is written again or when that snapshot ends, and an
+ * item whose only visible version is a deletion is dropped. */
+
+public class MultiVersionStore
+{
+	private static class Version
+	{
+		final long m_timestamp;
+		// null for a deletion
+		final RMItem m_item;
+		volatile Version m_older;
+
+		Version(long timestamp, RMItem item, Version older)
+		{
+			m_timestamp = timestamp;
+			m_item = item;
+			m_older = older;
+		}
+	}
+
+	private ConcurrentHashMap<String, Version> m_chains = new ConcurrentHashMap<String, Version>();
+
+	// The timestamp of the last commit installed, the snapshot a reader beginning now sees
+	private volatile long m_clock = 0;
+
+	// Guarded by this: the active snapshots to the number of readers of each, and the items that
+	// have versions older than the newest one
+	private TreeMap<Long, Integer> m_snapshots = new TreeMap<Long, Integer>();
+	private HashSet<String> m_old = new HashSet<String>();
+
+	// The committed items as the first versions, at timestamp 0
+	public MultiVersionStore(RMHashMap committed)
+	{
+		synchronized (committed) {
+			for (Map.Entry<String, RMItem> entry : committed.entrySet()) {
+				m_chains.put(entry.getKey(), new Version(0, entry.getValue(), null));
+			}
+		}
+	}
+
+	// Install the write set of a commit, null items being deletions
+	public synchronized void install(RMHashMap writeSet)
+	{
+		if (writeSet.isEmpty()) {
+			return;
+		}
+		long timestamp = m_clock + 1;
+		for (Map.Entry<String, RMItem> entry : writeSet.entrySet()) {
+			String key = entry.getKey();
+			Version newest = m_chains.get(key);
+			if (newest == null && entry.getValue() == null) {
+				continue;
+			}
+			m_chains.put(key, new Version(timestamp, entry.getValue(), newest));
+			if (newest != null) {
+				m_old.add(key);
+			}
+		}
+		// visible to the snapshots that begin from now on
+		m_clock = timestamp;
+		for (String key : writeSet.keySet()) {
+			prune(key);
+		}
+	}
+
+	// Begin a snapshot of the commits installed so far, which has to be ended
+	public synchronized long begin()
+	{
+		long snapshot = m_clock;
+		Integer readers = m_snapshots.get(snapshot);
+		m_snapshots.put(snapshot, readers == null ? 1 : readers + 1);
+		return snapshot;
+	}
+
+	public synchronized void end(long snapshot)
+	{
+		Integer readers = m_snapshots.get(snapshot);
+		if (readers == null) {
+			return;
+		}
+		if (readers > 1) {
+			m_snapshots.put(snapshot, readers - 1);
+			return;
+		}
+		m_snapshots.remove(snapshot);
+		if (m_snapshots.isEmpty() || m_snapshots.firstKey() > snapshot) {
+			// the versions only this snapshot could see are no longer needed
+			for (String key : new HashSet<String>(m_old)) {
+				prune(key);
+			}
+		}
+	}
+
+	// The item as of the snapshot, null if it did not exist then. It is shared and must not be changed.
+	public RMItem read(String key, long snapshot)
+	{
+		Version version = m_chains.get(key);
+		while (version != null && version.m_timestamp > snapshot) {
+			version = version.m_older;
+		}
+		return version == null ? null : version.m_item;
+	}
+
+	// The items as of the snapshot whose keys contain the given string
+	public RMHashMap scan(String contains, long snapshot)
+	{
+		RMHashMap items = new RMHashMap();
+		for (String key : m_chains.keySet()) {
+			if (key.contains(contains)) {
+				RMItem item = read(key, snapshot);
+				if (item != null) {
+					items.put(key, item);
+				}
+			}
+		}
+		return items;
+	}
+
+	// Unlink the versions of an item that no active snapshot sees, called holding this
+	private void prune(String key)
+	{
+		long oldest = m_snapshots.isEmpty() ? m_clock : m_snapshots.firstKey();
+		Version newest = m_chains.get(key);
+		Version visible = newest;
+		while (visible != null && visible.m_timestamp > oldest) {
+			visible = visible.m_older;
+		}
+		if (visible == null) {
+			return;
+		}
+		visible.m_older = null;
+		if (visible == newest) {
+			m_old.remove(key);
+			if (newest.m_item == null) {
+				m_chains.remove(key);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package Server.Common;
+
+// Replaces an item, or deletes it when the new value is null
+public class Overwrite extends Delta
+{
+	private static final long serialVersionUID = 1L;
+
+	private RMItem m_item;
+
+	public Overwrite(RMItem item)
+	{
+		m_item = item;
+	}
+
+	public RMItem apply(RMItem committed)
+	{
+		if (m_item == null) {
+			return null;
+		}
+		return (RMItem) m_item.clone();
+	}
+
+	// The later change applies to the new value instead of the committed item
+	protected Delta combine(Delta later)
+	{
+		return new Overwrite(later.apply(m_item));
+	}
+}
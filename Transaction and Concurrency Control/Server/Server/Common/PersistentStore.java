@@ -0,0 +1,449 @@
+package Server.Common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/* Committed data of a resource manager, kept on disk
+ *
+ * Commits go to the write-ahead log <name>.wal before they are applied to
+ * the data. A background thread checkpoints the data to <name>.snapshot
+ * every checkpoint interval if anything was committed since the last one,
+ * so that a restart loads the snapshot and only replays the log after it.
+ *
+ * Checkpoints are fuzzy: commits keep being applied while the data is
+ * written out. The snapshot records the log offset up to which every commit
+ * had been applied when it started; the commits after it may or may not be
+ * in the snapshot, and replaying them writes the same values again.
+ *
+ * A transaction committed in two phases logs its changes when it prepares
+ * and only applies them once its outcome is logged. A coordinator also logs its
+ * commit decisions with their participants until phase two has ended. The
+ * prepared transactions and the decisions still pending when the store
+ * recovers are handed back to the resource manager, and a checkpoint never
+ * resumes the log after the record of one that is still pending.
+ *
+ * Changes that commute are resolved against the committed items only when
+ * they commit, so the commits of a resource manager are resolved, logged and
+ * applied in one order: each is resolved against the commits before it, even
+ * those not on disk yet, but applied only once it is on disk itself. The log
+ * always holds the resolved items, so that replaying a commit the snapshot
+ * already has writes the same values again.
+ *
+ * A coordinator leases the xids it hands out in blocks, and a checkpoint
+ * never resumes the log after the last lease either: xids are never handed
+ * out twice across restarts, even by transactions that logged nothing. */
+
+public class PersistentStore
+{
+	public static final long CHECKPOINT_INTERVAL = 60000;
+
+	private RMHashMap m_data;
+	private WriteAheadLog m_log;
+	private String m_snapshotPath;
+
+	// Held shared by commits, prepares and decisions from logging until they are applied or registered,
+	// and exclusively by a checkpoint only to read where the log ends
+	private ReentrantReadWriteLock m_commits = new ReentrantReadWriteLock();
+
+	// Guarded by this: the log offset the current snapshot resumes from
+	private long m_checkpointed;
+
+	// Log offsets of the prepare records without an outcome and of the decisions that have not ended
+	private HashMap<Integer, Long> m_prepared = new HashMap<Integer, Long>();
+	private HashMap<Integer, Long> m_decided = new HashMap<Integer, Long>();
+
+	// Found by recovery: the write sets of the transactions prepared without an outcome, and the
+	// participants of the commit decisions that had not ended
+	private HashMap<Integer, HashMap<String, Delta>> m_inDoubt = new HashMap<Integer, HashMap<String, Delta>>();
+	private HashMap<Integer, String[]> m_unfinished = new HashMap<Integer, String[]>();
+
+	// Guarded by m_order: the items resolved by the commits not applied yet, the ticket of the next commit
+	// to resolve and the one of the next commit to apply
+	private Object m_order = new Object();
+	private HashMap<String, Resolved> m_resolved = new HashMap<String, Resolved>();
+	private long m_nextTicket = 0;
+	private long m_turn = 0;
+
+	// Guarded by m_decided: the highest xid leased or logged, and the log offset of the last lease, -1
+	// if there is none
+	private int m_leased = 0;
+	private long m_leaseOffset = -1;
+
+	// Load the newest snapshot and replay the log after it into the data, which must be empty
+	public PersistentStore(String name, RMHashMap data, long flushInterval, int batchSize, final long checkpointInterval)
+		throws IOException
+	{
+		m_data = data;
+		m_snapshotPath = name + ".snapshot";
+
+		long start = System.currentTimeMillis();
+		synchronized (m_data) {
+			m_checkpointed = Snapshot.read(m_snapshotPath, m_data);
+			int loaded = m_data.size();
+			m_log = new WriteAheadLog(name + ".wal", flushInterval, batchSize);
+			m_log.replay(new WriteAheadLog.Visitor() {
+				public void record(byte type, int xid, Object payload, long offset)
+				{
+					recover(type, xid, payload, offset);
+				}
+			}, m_checkpointed);
+			Trace.info("STORE::recover(" + name + ") loaded " + loaded + " items from the snapshot, replayed the log from " +
+				m_checkpointed + " and has " + m_data.size() + " items after " + (System.currentTimeMillis() - start) + " ms");
+		}
+
+		if (checkpointInterval > 0) {
+			Thread checkpointer = new Thread("Checkpointer " + name) {
+				public void run()
+				{
+					while (true) {
+						try {
+							sleep(checkpointInterval);
+							checkpoint();
+						} catch (InterruptedException e) {
+							return;
+						} catch (IOException e) {
+							Trace.error("STORE::checkpoint failed: " + e.getMessage());
+						}
+					}
+				}
+			};
+			checkpointer.setDaemon(true);
+			checkpointer.start();
+		}
+	}
+
+	// The changes of the transactions prepared without an outcome when the store recovered, by xid
+	public HashMap<Integer, HashMap<String, Delta>> getInDoubt()
+	{
+		return m_inDoubt;
+	}
+
+	// The commit decisions whose phase two had not ended when the store recovered, to their participants
+	public HashMap<Integer, String[]> getUnfinished()
+	{
+		return m_unfinished;
+	}
+
+	// The highest xid leased, or found in the log, when the store recovered
+	public int getLeased()
+	{
+		synchronized (m_decided) {
+			return m_leased;
+		}
+	}
+
+	// Lease the xids up to the given one, returns once the lease is on disk
+	public void lease(int xid) throws IOException
+	{
+		m_commits.readLock().lock();
+		try {
+			long offset = m_log.append(WriteAheadLog.LEASED, xid, null, true);
+			synchronized (m_decided) {
+				m_leased = Math.max(m_leased, xid);
+				m_leaseOffset = offset;
+			}
+		} finally {
+			m_commits.readLock().unlock();
+		}
+	}
+
+	// Make the write set of a transaction durable, then apply it to the data
+	public void commit(int xid, RMHashMap writeSet) throws IOException
+	{
+		m_commits.readLock().lock();
+		try {
+			if (!writeSet.isEmpty()) {
+				m_log.commit(xid, writeSet);
+			}
+			synchronized (m_data) {
+				for (Map.Entry<String, RMItem> entry : writeSet.entrySet()) {
+					m_data.put(entry.getKey(), entry.getValue());
+				}
+			}
+		} finally {
+			m_commits.readLock().unlock();
+		}
+	}
+
+	// Make the changes of a transaction durable without applying them, so that it can be committed even
+	// after a restart
+	public void prepare(int xid, HashMap<String, Delta> changes) throws IOException
+	{
+		m_commits.readLock().lock();
+		try {
+			long offset = m_log.append(WriteAheadLog.PREPARE, xid, changes, true);
+			synchronized (m_prepared) {
+				m_prepared.put(xid, offset);
+			}
+		} finally {
+			m_commits.readLock().unlock();
+		}
+	}
+
+	// Resolve the write set of a transaction against the committed items of the keys it writes, log it
+	// with the outcome if the transaction is prepared, and apply it once it is on disk, in commit order.
+	// Returns the write set applied.
+	public RMHashMap commit(int xid, Set<String> keys, boolean prepared, Commit commit) throws IOException
+	{
+		m_commits.readLock().lock();
+		try {
+			long ticket;
+			long offset;
+			RMHashMap writeSet;
+			synchronized (m_order) {
+				RMHashMap committed = new RMHashMap();
+				synchronized (m_data) {
+					for (String key : keys) {
+						Resolved resolved = m_resolved.get(key);
+						committed.put(key, resolved != null ? resolved.m_item : m_data.get(key));
+					}
+				}
+				writeSet = commit.resolve(committed);
+				if (writeSet.isEmpty() && !prepared) {
+					return writeSet;
+				}
+				offset = m_log.append(prepared ? WriteAheadLog.COMMITTED : WriteAheadLog.COMMIT, xid, writeSet, false);
+				ticket = m_nextTicket++;
+				for (Map.Entry<String, RMItem> entry : writeSet.entrySet()) {
+					m_resolved.put(entry.getKey(), new Resolved(ticket, entry.getValue()));
+				}
+			}
+
+			// the fsync is shared with the commits resolved meanwhile
+			IOException failure = null;
+			try {
+				m_log.force(offset);
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			boolean interrupted = false;
+			synchronized (m_order) {
+				while (m_turn != ticket) {
+					try {
+						m_order.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				try {
+					if (failure == null) {
+						synchronized (m_data) {
+							for (Map.Entry<String, RMItem> entry : writeSet.entrySet()) {
+								m_data.put(entry.getKey(), entry.getValue());
+							}
+						}
+						if (prepared) {
+							synchronized (m_prepared) {
+								m_prepared.remove(xid);
+							}
+						}
+						commit.applied(writeSet);
+					}
+				} finally {
+					for (String key : writeSet.keySet()) {
+						Resolved resolved = m_resolved.get(key);
+						if (resolved != null && resolved.m_ticket == ticket) {
+							m_resolved.remove(key);
+						}
+					}
+					m_turn++;
+					m_order.notifyAll();
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return writeSet;
+		} finally {
+			m_commits.readLock().unlock();
+		}
+	}
+
+	// Log that a prepared transaction committed, then apply its write set to the data
+	public void commitPrepared(int xid, RMHashMap writeSet) throws IOException
+	{
+		m_commits.readLock().lock();
+		try {
+			m_log.append(WriteAheadLog.COMMITTED, xid, null, true);
+			synchronized (m_data) {
+				for (Map.Entry<String, RMItem> entry : writeSet.entrySet()) {
+					m_data.put(entry.getKey(), entry.getValue());
+				}
+			}
+			synchronized (m_prepared) {
+				m_prepared.remove(xid);
+			}
+		} finally {
+			m_commits.readLock().unlock();
+		}
+	}
+
+	// Log that a prepared transaction aborted
+	public void abortPrepared(int xid) throws IOException
+	{
+		m_commits.readLock().lock();
+		try {
+			m_log.append(WriteAheadLog.ABORTED, xid, null, true);
+			synchronized (m_prepared) {
+				m_prepared.remove(xid);
+			}
+		} finally {
+			m_commits.readLock().unlock();
+		}
+	}
+
+	// Log the commit decision of a coordinator with the names of the participants to tell
+	public void decide(int xid, String[] participants) throws IOException
+	{
+		m_commits.readLock().lock();
+		try {
+			long offset = m_log.append(WriteAheadLog.DECIDED, xid, participants, true);
+			synchronized (m_decided) {
+				m_decided.put(xid, offset);
+			}
+		} finally {
+			m_commits.readLock().unlock();
+		}
+	}
+
+	// Every participant has been told the decision, which a restart does not need to repeat. Not
+	// waited for: if the record is lost, the participants are told again.
+	public void end(int xid) throws IOException
+	{
+		m_log.append(WriteAheadLog.ENDED, xid, null, false);
+		synchronized (m_decided) {
+			m_decided.remove(xid);
+		}
+	}
+
+	// Write a snapshot of the data unless nothing was committed since the last one
+	public synchronized void checkpoint() throws IOException
+	{
+		long logOffset;
+		m_commits.writeLock().lock();
+		try {
+			logOffset = m_log.end();
+		} finally {
+			m_commits.writeLock().unlock();
+		}
+		// the records of the pending transactions are replayed again
+		synchronized (m_prepared) {
+			for (long offset : m_prepared.values()) {
+				logOffset = Math.min(logOffset, offset);
+			}
+		}
+		synchronized (m_decided) {
+			for (long offset : m_decided.values()) {
+				logOffset = Math.min(logOffset, offset);
+			}
+			if (m_leaseOffset >= 0) {
+				logOffset = Math.min(logOffset, m_leaseOffset);
+			}
+		}
+		if (logOffset == m_checkpointed) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		long count = Snapshot.write(m_snapshotPath, m_data, logOffset);
+		m_checkpointed = logOffset;
+		Trace.info("STORE::checkpoint wrote " + count + " items up to the log offset " + logOffset + " in " +
+			(System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void recover(byte type, int xid, Object payload, long offset)
+	{
+		m_leased = Math.max(m_leased, xid);
+		switch (type) {
+			case WriteAheadLog.COMMIT:
+				applyRecovered((RMHashMap) payload);
+				break;
+			case WriteAheadLog.PREPARE:
+				m_inDoubt.put(xid, changes(payload));
+				m_prepared.put(xid, offset);
+				break;
+			case WriteAheadLog.COMMITTED:
+				// the prepare record is before the snapshot when the outcome is already in it
+				HashMap<String, Delta> changes = m_inDoubt.remove(xid);
+				if (payload != null) {
+					applyRecovered((RMHashMap) payload);
+				} else if (changes != null) {
+					for (Map.Entry<String, Delta> change : changes.entrySet()) {
+						m_data.put(change.getKey(), change.getValue().apply(m_data.get(change.getKey())));
+					}
+				}
+				m_prepared.remove(xid);
+				break;
+			case WriteAheadLog.ABORTED:
+				m_inDoubt.remove(xid);
+				m_prepared.remove(xid);
+				break;
+			case WriteAheadLog.DECIDED:
+				m_unfinished.put(xid, (String[]) payload);
+				m_decided.put(xid, offset);
+				break;
+			case WriteAheadLog.ENDED:
+				m_unfinished.remove(xid);
+				m_decided.remove(xid);
+				break;
+			case WriteAheadLog.LEASED:
+				m_leaseOffset = offset;
+				break;
+		}
+	}
+
+	// The changes of a prepare record, which held the write set before changes were logged. The map
+	// is copied entry by entry, so that a record of the wrong type fails here rather than on commit
+	private static HashMap<String, Delta> changes(Object payload)
+	{
+		HashMap<String, Delta> changes = new HashMap<String, Delta>();
+		if (payload instanceof RMHashMap) {
+			for (Map.Entry<String, RMItem> entry : ((RMHashMap) payload).entrySet()) {
+				changes.put(entry.getKey(), new Overwrite(entry.getValue()));
+			}
+			return changes;
+		}
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) payload).entrySet()) {
+			changes.put((String) entry.getKey(), (Delta) entry.getValue());
+		}
+		return changes;
+	}
+
+	private void applyRecovered(RMHashMap writeSet)
+	{
+		for (Map.Entry<String, RMItem> entry : writeSet.entrySet()) {
+			m_data.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	// A commit resolved in commit order, see commit(int, Set, boolean, Commit)
+	public interface Commit
+	{
+		// The write set made from the committed items of the keys written, which include the items of the
+		// commits before it that are not applied yet
+		public RMHashMap resolve(RMHashMap committed);
+
+		// The write set has been applied to the data, called in commit order
+		public void applied(RMHashMap writeSet);
+	}
+
+	private static class Resolved
+	{
+		final long m_ticket;
+		// null for a deletion
+		final RMItem m_item;
+
+		Resolved(long ticket, RMItem item)
+		{
+			m_ticket = ticket;
+			m_item = item;
+		}
+	}
+}
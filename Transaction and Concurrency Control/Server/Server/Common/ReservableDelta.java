@@ -0,0 +1,48 @@
+package Server.Common;
+
+// Adjusts the available and reserved counts of a reservable item, and sets its price when positive
+public class ReservableDelta extends Delta
+{
+	private static final long serialVersionUID = 1L;
+
+	private int m_count;
+	private int m_reserved;
+	private int m_price;
+
+	public ReservableDelta(int count, int reserved, int price)
+	{
+		m_count = count;
+		m_reserved = reserved;
+		m_price = price;
+	}
+
+	public RMItem apply(RMItem committed)
+	{
+		if (committed == null) {
+			return null;
+		}
+		ReservableItem item = (ReservableItem) committed.clone();
+		item.setCount(item.getCount() + m_count);
+		item.setReserved(item.getReserved() + m_reserved);
+		if (m_price > 0) {
+			item.setPrice(m_price);
+		}
+		return item;
+	}
+
+	// Counts add up in any order, but a price replaces the committed one
+	public boolean commutes()
+	{
+		return m_price <= 0;
+	}
+
+	protected Delta combine(Delta later)
+	{
+		if (!(later instanceof ReservableDelta)) {
+			throw new IllegalArgumentException("A reservable item can only be adjusted or overwritten");
+		}
+		ReservableDelta next = (ReservableDelta) later;
+		return new ReservableDelta(m_count + next.m_count, m_reserved + next.m_reserved,
+			next.m_price > 0 ? next.m_price : m_price);
+	}
+}
@@ -0,0 +1,54 @@
+package Server.Common;
+
+import java.util.HashMap;
+
+// Adds reservations to a customer. As with Customer.reserve, the latest price of an item overrides the
+// earlier ones.
+public class ReservationDelta extends Delta
+{
+	private static final long serialVersionUID = 1L;
+
+	// by the key of the reserved item, with the number of reservations added
+	private HashMap<String, ReservedItem> m_reservations = new HashMap<String, ReservedItem>();
+
+	public ReservationDelta(String key, String location, int price)
+	{
+		ReservedItem reservedItem = new ReservedItem(key, location, 1, price);
+		m_reservations.put(reservedItem.getKey(), reservedItem);
+	}
+
+	private ReservationDelta()
+	{
+	}
+
+	public RMItem apply(RMItem committed)
+	{
+		if (committed == null) {
+			return null;
+		}
+		Customer customer = (Customer) committed.clone();
+		for (ReservedItem reservedItem : m_reservations.values()) {
+			customer.reserve(reservedItem.getReservableItemKey(), reservedItem.getLocation(),
+				reservedItem.getCount(), reservedItem.getPrice());
+		}
+		return customer;
+	}
+
+	protected Delta combine(Delta later)
+	{
+		if (!(later instanceof ReservationDelta)) {
+			throw new IllegalArgumentException("A customer can only get reservations or be overwritten");
+		}
+		ReservationDelta merged = new ReservationDelta();
+		merged.m_reservations.putAll(m_reservations);
+		for (ReservedItem added : ((ReservationDelta) later).m_reservations.values()) {
+			ReservedItem reservedItem = merged.m_reservations.get(added.getKey());
+			if (reservedItem != null) {
+				added = new ReservedItem(added.getReservableItemKey(), added.getLocation(),
+					reservedItem.getCount() + added.getCount(), added.getPrice());
+			}
+			merged.m_reservations.put(added.getKey(), added);
+		}
+		return merged;
+	}
+}
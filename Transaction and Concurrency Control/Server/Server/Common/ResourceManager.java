@@ -8,6 +8,10 @@ package Server.Common;
 import Server.Exceptions.InvalidTransactionException;
 import Server.Exceptions.TransactionAbortedException;
 import Server.Interface.*;
+import Server.Transaction.IsolationLevel;
+import Server.Transaction.Operation;
+import Server.Transaction.TransactionResult;
+import Server.Transaction.Vote;
 
 import java.util.*;
 import java.rmi.RemoteException;
@@ -417,6 +421,33 @@ public class ResourceManager implements IResourceManager
 		return 0;
 	}
 
+	@Override
+	public int start(IsolationLevel isolation) throws RemoteException {
+		return 0;
+	}
+
+	@Override
+	public ReservableItem readCommitted(int xid, String key) throws RemoteException {
+		synchronized(m_data) {
+			return (ReservableItem)m_data.get(key);
+		}
+	}
+
+	@Override
+	public TransactionResult executeTransaction(List<Operation> operations) throws RemoteException {
+		throw new RemoteException("Only the middleware runs transactions sent as a whole");
+	}
+
+	@Override
+	public Set<Integer> getInDoubt() throws RemoteException {
+		return new HashSet<Integer>();
+	}
+
+	@Override
+	public Vote prepare(int transactionId) throws RemoteException, InvalidTransactionException {
+		return Vote.NO;
+	}
+
 	@Override
 	public boolean commit(int transactionId) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
 		return false;
@@ -453,6 +484,11 @@ public class ResourceManager implements IResourceManager
 		return item.getPrice();
 	}
 
+	@Override
+	public String dumpLocks() throws RemoteException {
+		return null;
+	}
+
 	/*@Override
 	public String analytics(int xid) throws RemoteException {
 		return null;
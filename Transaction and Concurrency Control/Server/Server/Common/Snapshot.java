@@ -0,0 +1,236 @@
+package Server.Common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/* Snapshot of the committed data of a store
+ *
+ * The file is [magic][log offset][entry count] followed by one object stream
+ * of (key, item) pairs, read and written through memory mappings of WINDOW
+ * bytes. The log offset is where the replay of the log resumes after loading
+ * the snapshot.
+ *
+ * A snapshot is written to a temporary file which replaces the previous one
+ * once it is complete, so the file found on restart is always the newest
+ * complete snapshot. */
+
+public class Snapshot
+{
+	private static final int MAGIC = 0x524d5350;
+	private static final int HEADER = 4 + 8 + 8;
+	private static final long WINDOW = 64 << 20;
+
+	// Items copied out of the data per synchronized block, the object stream is reset as often
+	private static final int CHUNK = 1024;
+
+	// Write the data to the snapshot file. Only the key list and chunks of CHUNK items are copied under
+	// the monitor of the data, the items are serialized outside of it: the committed items are
+	// replaced by commits, never modified. Returns the number of items written.
+	public static long write(String path, RMHashMap data, long logOffset) throws IOException
+	{
+		String[] keys;
+		synchronized (data) {
+			keys = data.keySet().toArray(new String[data.size()]);
+		}
+
+		Path temporary = Paths.get(path + ".tmp");
+		long count = 0;
+		FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			MappedOutput out = new MappedOutput(channel, HEADER);
+			ObjectOutputStream objects = new ObjectOutputStream(out);
+			RMItem[] items = new RMItem[CHUNK];
+			for (int start = 0; start < keys.length; start += CHUNK) {
+				int length = Math.min(CHUNK, keys.length - start);
+				synchronized (data) {
+					for (int i = 0; i < length; i++) {
+						items[i] = data.get(keys[start + i]);
+					}
+				}
+				for (int i = 0; i < length; i++) {
+					// deleted since the keys were listed, or committed as deleted
+					if (items[i] == null) {
+						continue;
+					}
+					objects.writeUTF(keys[start + i]);
+					objects.writeObject(items[i]);
+					items[i] = null;
+					count++;
+				}
+				// forget the items written so far, the stream would keep them all otherwise
+				objects.reset();
+			}
+			objects.flush();
+			long end = out.finish();
+
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+			header.putInt(MAGIC);
+			header.putLong(logOffset);
+			header.putLong(count);
+			header.force();
+			channel.truncate(end);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+
+		Files.move(temporary, Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+
+	// Load the snapshot file into the data and return the log offset to replay from, which is 0 when
+	// there is no snapshot to start from
+	public static long read(String path, RMHashMap data) throws IOException
+	{
+		Path file = Paths.get(path);
+		if (!Files.exists(file)) {
+			return 0;
+		}
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < HEADER) {
+				Trace.warn("SNAPSHOT::read ignored " + path + ", it is too short");
+				return 0;
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+			if (header.getInt() != MAGIC) {
+				Trace.warn("SNAPSHOT::read ignored " + path + ", it is not a snapshot");
+				return 0;
+			}
+			long logOffset = header.getLong();
+			long count = header.getLong();
+
+			ObjectInputStream objects = new ObjectInputStream(new MappedInput(channel, HEADER, size));
+			for (long i = 0; i < count; i++) {
+				String key = objects.readUTF();
+				data.put(key, (RMItem) objects.readObject());
+			}
+			return logOffset;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown item in the snapshot", e);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Writes through a mapping of the file moved forward a window at a time, growing the file
+	private static class MappedOutput extends OutputStream
+	{
+		private FileChannel m_channel;
+		private MappedByteBuffer m_window;
+		private long m_windowStart;
+
+		MappedOutput(FileChannel channel, long position) throws IOException
+		{
+			m_channel = channel;
+			map(position);
+		}
+
+		private void map(long position) throws IOException
+		{
+			if (m_window != null) {
+				m_window.force();
+			}
+			m_window = m_channel.map(FileChannel.MapMode.READ_WRITE, position, WINDOW);
+			m_windowStart = position;
+		}
+
+		public void write(int b) throws IOException
+		{
+			if (!m_window.hasRemaining()) {
+				map(m_windowStart + WINDOW);
+			}
+			m_window.put((byte) b);
+		}
+
+		public void write(byte[] b, int offset, int length) throws IOException
+		{
+			while (length > 0) {
+				if (!m_window.hasRemaining()) {
+					map(m_windowStart + WINDOW);
+				}
+				int n = Math.min(length, m_window.remaining());
+				m_window.put(b, offset, n);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		// Force what has been written and return where it ends
+		long finish()
+		{
+			m_window.force();
+			return m_windowStart + m_window.position();
+		}
+	}
+
+	// Reads through a read only mapping of the file moved forward a window at a time
+	private static class MappedInput extends InputStream
+	{
+		private FileChannel m_channel;
+		private MappedByteBuffer m_window;
+		private long m_windowStart;
+		private long m_end;
+
+		MappedInput(FileChannel channel, long position, long end) throws IOException
+		{
+			m_channel = channel;
+			m_end = end;
+			map(position);
+		}
+
+		private void map(long position) throws IOException
+		{
+			m_window = m_channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, m_end - position));
+			m_windowStart = position;
+		}
+
+		// Whether there is anything left, moving to the next window if this one is exhausted
+		private boolean hasMore() throws IOException
+		{
+			if (m_window.hasRemaining()) {
+				return true;
+			}
+			long next = m_windowStart + m_window.capacity();
+			if (next >= m_end) {
+				return false;
+			}
+			map(next);
+			return true;
+		}
+
+		public int read() throws IOException
+		{
+			if (!hasMore()) {
+				return -1;
+			}
+			return m_window.get() & 0xff;
+		}
+
+		public int read(byte[] b, int offset, int length) throws IOException
+		{
+			if (length == 0) {
+				return 0;
+			}
+			if (!hasMore()) {
+				return -1;
+			}
+			int n = Math.min(length, m_window.remaining());
+			m_window.get(b, offset, n);
+			return n;
+		}
+	}
+}
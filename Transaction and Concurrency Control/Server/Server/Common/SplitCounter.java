@@ -0,0 +1,183 @@
+package Server.Common;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Available count of a hot item, spread over sub-counters
+ *
+ * Each sub-counter holds a share of what is left to reserve, and a
+ * transaction always reserves from the same one, under that sub-counter's
+ * lock only, so that reservations of the item by different transactions
+ * rarely meet. When its sub-counter runs out, a transaction takes every lock
+ * and spreads what is left evenly again; the reservation fails only if the
+ * whole count is short.
+ *
+ * The shares plus the amounts taken by the unfinished transactions make up
+ * the committed count. An abort gives its amounts back to the share they came
+ * from, a commit drops them since the committed count has gone down by as
+ * much.
+ *
+ * Once no transaction has anything taken, the escrow can retire the counter:
+ * a retired counter refuses to take anything, and the item goes back to a
+ * single count. */
+
+class SplitCounter
+{
+	// What take answers: RETIRED if the counter no longer keeps the count of its item
+	enum Take
+	{
+		TAKEN, SHORT, RETIRED
+	}
+
+	private static class Share
+	{
+		final ReentrantLock m_lock = new ReentrantLock();
+		int m_left;
+		// the amounts taken by the unfinished transactions, by xid
+		final HashMap<Integer, Integer> m_taken = new HashMap<Integer, Integer>();
+
+		void take(int xid, int amount)
+		{
+			Integer taken = m_taken.get(xid);
+			m_taken.put(xid, taken == null ? amount : taken + amount);
+		}
+	}
+
+	private Share[] m_shares;
+	// Set holding every lock, so read holding any of them
+	private boolean m_retired = false;
+
+	// Spread what is left over the sub-counters, the amounts already taken going to the sub-counter of
+	// their transaction
+	SplitCounter(int subCounters, int left, HashMap<Integer, Integer> taken)
+	{
+		m_shares = new Share[subCounters];
+		for (int i = 0; i < subCounters; i++) {
+			m_shares[i] = new Share();
+		}
+		for (Integer xid : taken.keySet()) {
+			share(xid).take(xid, taken.get(xid));
+		}
+		spread(Math.max(left, 0));
+	}
+
+	// Take the amount for the transaction, SHORT if the whole count is
+	Take take(int xid, int amount)
+	{
+		Share share = share(xid);
+		share.m_lock.lock();
+		try {
+			if (m_retired) {
+				return Take.RETIRED;
+			}
+			if (share.m_left >= amount) {
+				share.m_left -= amount;
+				share.take(xid, amount);
+				return Take.TAKEN;
+			}
+		} finally {
+			share.m_lock.unlock();
+		}
+
+		lockAll();
+		try {
+			if (m_retired) {
+				return Take.RETIRED;
+			}
+			int left = 0;
+			for (Share other : m_shares) {
+				left += other.m_left;
+			}
+			if (left < amount) {
+				return Take.SHORT;
+			}
+			share.take(xid, amount);
+			spread(left - amount);
+			return Take.TAKEN;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	// The transaction has finished, its amounts are given back if it aborted. Returns whether it had
+	// taken any.
+	boolean finish(int xid, boolean giveBack)
+	{
+		Share share = share(xid);
+		share.m_lock.lock();
+		try {
+			Integer taken = share.m_taken.remove(xid);
+			if (taken == null) {
+				return false;
+			}
+			if (giveBack) {
+				share.m_left += taken;
+			}
+			return true;
+		} finally {
+			share.m_lock.unlock();
+		}
+	}
+
+	// Spread the committed count again after it changed by something else than reservations
+	void resync(String key, Escrow.Count committed)
+	{
+		lockAll();
+		try {
+			int left = committed.get(key);
+			for (Share share : m_shares) {
+				for (int taken : share.m_taken.values()) {
+					left -= taken;
+				}
+			}
+			spread(Math.max(left, 0));
+		} finally {
+			unlockAll();
+		}
+	}
+
+	// Stop keeping the count if no transaction has anything taken, returns whether it stopped
+	boolean retire()
+	{
+		lockAll();
+		try {
+			for (Share share : m_shares) {
+				if (!share.m_taken.isEmpty()) {
+					return false;
+				}
+			}
+			m_retired = true;
+			return true;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	private Share share(int xid)
+	{
+		return m_shares[Math.abs(xid % m_shares.length)];
+	}
+
+	// Called holding every lock, or before the counter is shared
+	private void spread(int left)
+	{
+		for (int i = 0; i < m_shares.length; i++) {
+			m_shares[i].m_left = left / m_shares.length + (i < left % m_shares.length ? 1 : 0);
+		}
+	}
+
+	// The locks are always taken in the same order
+	private void lockAll()
+	{
+		for (Share share : m_shares) {
+			share.m_lock.lock();
+		}
+	}
+
+	private void unlockAll()
+	{
+		for (int i = m_shares.length - 1; i >= 0; i--) {
+			m_shares[i].m_lock.unlock();
+		}
+	}
+}
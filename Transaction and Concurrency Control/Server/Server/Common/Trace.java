@@ -9,9 +9,25 @@ package Server.Common;
 // of the verbose output from RM, TM, and WC if we want
 public class Trace
 {
+	private static boolean s_info = true;
+
+	// Turn the INFO output on or off, e.g. for benchmarks where printing would dominate
+	public static void setInfo(boolean enabled)
+	{
+		s_info = enabled;
+	}
+
+	// Lets hot paths skip building a message that would not be printed
+	public static boolean isInfoEnabled()
+	{
+		return s_info;
+	}
+
 	public static void info(String msg)
 	{
-		System.out.println(getThreadID() + " INFO: " + msg);
+		if (s_info) {
+			System.out.println(getThreadID() + " INFO: " + msg);
+		}
 	}
 	public static void warn(String msg)
 	{
@@ -0,0 +1,134 @@
+package Server.Common;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/* Versions of the committed items of a resource manager
+ *
+ * Every commit moves the version of the items it writes forward. A transaction
+ * records the version of each item when it first reads it, and can commit only
+ * if none of them has moved since and no transaction holds them: this is what
+ * lets optimistic transactions read without locks. Under two-phase locking the
+ * locks keep the versions from moving, and validation always succeeds.
+ *
+ * A valid transaction holds the items it writes until it commits or aborts,
+ * so that a transaction validated in the meantime cannot miss its writes. An
+ * item never written has version 0, and so has every item after a restart.
+ *
+ * Changes that commute, like reservations under escrow, are resolved against
+ * the committed item when they are applied, so they do not hold the item for
+ * each other: they only share it, which keeps the changes that do not commute
+ * out until they are applied. Such a change depends on the item existing as
+ * it was, so the transaction records its overwrite version, which only the
+ * changes that do not commute move, and fails if it has moved. */
+
+public class VersionTable
+{
+	private HashMap<String, Long> m_versions = new HashMap<String, Long>();
+	private HashMap<String, Long> m_overwrites = new HashMap<String, Long>();
+
+	// The items written by the transactions validated but not finished yet, to their xid, and the items
+	// they change commutatively, to the xids sharing them
+	private HashMap<String, Integer> m_held = new HashMap<String, Integer>();
+	private HashMap<String, HashSet<Integer>> m_shared = new HashMap<String, HashSet<Integer>>();
+
+	public synchronized long get(String key)
+	{
+		return get(m_versions, key);
+	}
+
+	// The version moved only by the changes that do not commute
+	public synchronized long getOverwrites(String key)
+	{
+		return get(m_overwrites, key);
+	}
+
+	// Check that the items read are unchanged and not about to be written, and that the items changed
+	// commutatively have not been overwritten, then hold or share the items the transaction writes.
+	// Returns false if the transaction has to abort.
+	public synchronized boolean validate(int xid, Map<String, Long> reads, Map<String, Long> bases, Set<String> writes,
+		Set<String> commutative)
+	{
+		for (Map.Entry<String, Long> read : reads.entrySet()) {
+			if (heldByOther(xid, read.getKey()) || get(m_versions, read.getKey()) != read.getValue()) {
+				return false;
+			}
+		}
+		for (Map.Entry<String, Long> base : bases.entrySet()) {
+			if (get(m_overwrites, base.getKey()) != base.getValue()) {
+				return false;
+			}
+		}
+		for (String key : writes) {
+			if (heldByOther(xid, key) || (!commutative.contains(key) && sharedByOther(xid, key))) {
+				return false;
+			}
+		}
+		for (String key : writes) {
+			if (commutative.contains(key)) {
+				HashSet<Integer> sharing = m_shared.get(key);
+				if (sharing == null) {
+					sharing = new HashSet<Integer>();
+					m_shared.put(key, sharing);
+				}
+				sharing.add(xid);
+			} else {
+				m_held.put(key, xid);
+			}
+		}
+		return true;
+	}
+
+	// The writes of the transaction have been applied, none of them commutative
+	public synchronized void commit(int xid, Set<String> writes)
+	{
+		commit(xid, writes, new HashSet<String>());
+	}
+
+	// The writes of the transaction have been applied
+	public synchronized void commit(int xid, Set<String> writes, Set<String> commutative)
+	{
+		for (String key : writes) {
+			m_versions.put(key, get(m_versions, key) + 1);
+			if (!commutative.contains(key)) {
+				m_overwrites.put(key, get(m_overwrites, key) + 1);
+			}
+		}
+		release(xid, writes);
+	}
+
+	// Stop holding or sharing the items of a transaction, if it did
+	public synchronized void release(int xid, Set<String> writes)
+	{
+		for (String key : writes) {
+			Integer holder = m_held.get(key);
+			if (holder != null && holder == xid) {
+				m_held.remove(key);
+			}
+			HashSet<Integer> sharing = m_shared.get(key);
+			if (sharing != null && sharing.remove(xid) && sharing.isEmpty()) {
+				m_shared.remove(key);
+			}
+		}
+	}
+
+	private boolean heldByOther(int xid, String key)
+	{
+		Integer holder = m_held.get(key);
+		return holder != null && holder != xid;
+	}
+
+	private boolean sharedByOther(int xid, String key)
+	{
+		HashSet<Integer> sharing = m_shared.get(key);
+		return sharing != null && (sharing.size() > 1 || !sharing.contains(xid));
+	}
+
+	private static long get(HashMap<String, Long> versions, String key)
+	{
+		Long version = versions.get(key);
+		return version == null ? 0 : version;
+	}
+}
@@ -0,0 +1,340 @@
+package Server.Common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/* Append-only log of the write sets committed by a resource manager
+ *
+ * A record is [length][crc32][type][xid][serialized payload]: the write set of
+ * a transaction committed in one phase, the changes of a prepared one, the
+ * outcome of a prepared transaction with the write set it resolved to, the
+ * commit decision of a coordinator and its end, or the highest xid a
+ * coordinator may hand out. A commit appends its record and waits until it
+ * has been forced to disk, but the forcing is done by a single flusher
+ * thread: every record queued while a force is in progress is written by the
+ * next one, so concurrent commits share fsyncs.
+ *
+ * The flusher forces as soon as there is a record when the flush interval is
+ * 0. Otherwise it waits up to the interval after the first record of a batch
+ * for more commits to join it, and stops waiting once the batch size is
+ * reached. */
+
+public class WriteAheadLog
+{
+	public static final long FLUSH_INTERVAL = 0;
+	public static final int BATCH_SIZE = 64;
+
+	// Record types, the payload is a write set for COMMIT and COMMITTED, the changes for PREPARE, the
+	// participants for DECIDED. COMMITTED may have no payload, LEASED never has one: its xid is the
+	// highest one leased
+	public static final byte COMMIT = 0;
+	public static final byte PREPARE = 1;
+	public static final byte COMMITTED = 2;
+	public static final byte ABORTED = 3;
+	public static final byte DECIDED = 4;
+	public static final byte ENDED = 5;
+	public static final byte LEASED = 6;
+
+	private static final int HEADER = 4 + 8;
+
+	// Receives the records found by replay, with the log offset each one starts at
+	public interface Visitor
+	{
+		public void record(byte type, int xid, Object payload, long offset);
+	}
+
+	private FileChannel m_channel;
+	private long m_flushInterval;
+	private int m_batchSize;
+
+	// Records waiting for the flusher, and the log offset at the end of the last one
+	private ArrayList<ByteBuffer> m_queue = new ArrayList<ByteBuffer>();
+	private long m_appended;
+	private boolean m_closed = false;
+
+	// Guarded by this: the log offset up to which everything is on disk
+	private long m_durable;
+	private IOException m_failure = null;
+
+	private volatile long m_forces = 0;
+	private volatile long m_records = 0;
+
+	public WriteAheadLog(String path, long flushInterval, int batchSize) throws IOException
+	{
+		m_channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		m_flushInterval = flushInterval;
+		m_batchSize = Math.max(batchSize, 1);
+		m_appended = m_channel.size();
+		m_durable = m_appended;
+		m_channel.position(m_appended);
+
+		Thread flusher = new Thread("WAL flusher") {
+			public void run()
+			{
+				flush();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	// Pass every complete record from the given offset on to the visitor, in log order, then drop a
+	// record torn by a crash so that the next ones are appended after the last complete record. Called
+	// before anything is appended.
+	public void replay(Visitor visitor, long from) throws IOException
+	{
+		long position = from;
+		long size = m_channel.size();
+		if (from > size) {
+			throw new IOException("The log ends at " + size + " before the checkpoint at " + from);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		int records = 0;
+		while (position + HEADER <= size) {
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			int length = header.getInt();
+			long crc = header.getLong();
+			if (length < 5 || position + HEADER + length > size) {
+				break;
+			}
+
+			ByteBuffer body = ByteBuffer.allocate(length);
+			readFully(body, position + HEADER);
+			CRC32 checksum = new CRC32();
+			checksum.update(body.array(), 0, length);
+			if (checksum.getValue() != crc) {
+				break;
+			}
+
+			body.rewind();
+			byte type = body.get();
+			int xid = body.getInt();
+			visitor.record(type, xid, decode(body.array(), length), position);
+			position += HEADER + length;
+			records++;
+		}
+
+		if (position < size) {
+			Trace.warn("WAL::replay dropped " + (size - position) + " bytes of an incomplete record");
+			m_channel.truncate(position);
+			m_channel.force(true);
+		}
+		m_channel.position(position);
+		synchronized (m_queue) {
+			m_appended = position;
+		}
+		synchronized (this) {
+			m_durable = position;
+		}
+		Trace.info("WAL::replay read " + records + " records");
+	}
+
+	// Log the write set of a transaction committed in one phase and return once it is on disk
+	public void commit(int xid, RMHashMap writeSet) throws IOException
+	{
+		append(COMMIT, xid, writeSet, true);
+	}
+
+	// Log a record and return the offset it starts at, once it is on disk unless told not to wait
+	public long append(byte type, int xid, Serializable payload, boolean durable) throws IOException
+	{
+		ByteBuffer record = encode(type, xid, payload);
+		long end;
+		synchronized (m_queue) {
+			if (m_closed) {
+				throw new IOException("The log is closed");
+			}
+			m_queue.add(record);
+			m_appended += record.remaining();
+			end = m_appended;
+			if (m_queue.size() == 1 || m_queue.size() >= m_batchSize) {
+				m_queue.notify();
+			}
+		}
+		long start = end - record.limit();
+		if (durable) {
+			awaitDurable(end);
+		}
+		return start;
+	}
+
+	// Wait until the record appended at the offset is on disk
+	public void force(long offset) throws IOException
+	{
+		// the log is always forced up to the end of a record
+		awaitDurable(offset + 1);
+	}
+
+	private synchronized void awaitDurable(long end) throws IOException
+	{
+		while (m_durable < end && m_failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the log to be forced");
+			}
+		}
+		if (m_durable < end) {
+			throw new IOException("The log could not be forced", m_failure);
+		}
+	}
+
+	// Force what has been queued and stop the flusher
+	public void close() throws IOException
+	{
+		synchronized (m_queue) {
+			m_closed = true;
+			m_queue.notify();
+		}
+		synchronized (this) {
+			long end;
+			synchronized (m_queue) {
+				end = m_appended;
+			}
+			while (m_durable < end && m_failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		m_channel.close();
+	}
+
+	// The log offset after the last record appended
+	public long end()
+	{
+		synchronized (m_queue) {
+			return m_appended;
+		}
+	}
+
+	// Number of fsyncs done, and of records they made durable
+	public long getForceCount()
+	{
+		return m_forces;
+	}
+
+	public long getRecordCount()
+	{
+		return m_records;
+	}
+
+	private void flush()
+	{
+		while (true) {
+			ByteBuffer[] batch;
+			long end;
+			synchronized (m_queue) {
+				try {
+					while (m_queue.isEmpty() && !m_closed) {
+						m_queue.wait();
+					}
+					// Give other commits the rest of the interval to join the batch
+					long deadline = System.currentTimeMillis() + m_flushInterval;
+					long remaining = m_flushInterval;
+					while (m_queue.size() < m_batchSize && !m_closed && remaining > 0) {
+						m_queue.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (m_queue.isEmpty()) {
+					return;
+				}
+				batch = m_queue.toArray(new ByteBuffer[m_queue.size()]);
+				m_queue.clear();
+				end = m_appended;
+			}
+
+			try {
+				int current = 0;
+				while (current < batch.length) {
+					m_channel.write(batch, current, batch.length - current);
+					while (current < batch.length && !batch[current].hasRemaining()) {
+						current++;
+					}
+				}
+				m_channel.force(false);
+			} catch (IOException e) {
+				Trace.error("WAL::flush failed: " + e.getMessage());
+				synchronized (this) {
+					m_failure = e;
+					notifyAll();
+				}
+				synchronized (m_queue) {
+					m_closed = true;
+				}
+				return;
+			}
+
+			m_forces++;
+			m_records += batch.length;
+			synchronized (this) {
+				m_durable = end;
+				notifyAll();
+			}
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining()) {
+			int read = m_channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of the log at " + position);
+			}
+			position += read;
+		}
+	}
+
+	private static ByteBuffer encode(byte type, int xid, Serializable payload) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		// room for the header, filled in once the length and checksum are known
+		out.writeInt(0);
+		out.writeLong(0);
+		out.writeByte(type);
+		out.writeInt(xid);
+		ObjectOutputStream objects = new ObjectOutputStream(out);
+		objects.writeObject(payload);
+		objects.flush();
+
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		int length = record.limit() - HEADER;
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), HEADER, length);
+		record.putInt(0, length);
+		record.putLong(4, checksum.getValue());
+		return record;
+	}
+
+	private static Object decode(byte[] body, int length) throws IOException
+	{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, 5, length - 5));
+		try {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown item in the log", e);
+		}
+	}
+}
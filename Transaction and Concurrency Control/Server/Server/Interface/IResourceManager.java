@@ -4,6 +4,10 @@ import Server.Common.RMItem;
 import Server.Common.ReservableItem;
 import Server.Exceptions.InvalidTransactionException;
 import Server.Exceptions.TransactionAbortedException;
+import Server.Transaction.IsolationLevel;
+import Server.Transaction.Operation;
+import Server.Transaction.TransactionResult;
+import Server.Transaction.Vote;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -63,9 +67,9 @@ public interface IResourceManager extends Remote
     public boolean addRooms(int id, String location, int numRooms, int price)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException;
 			    
-    public String analyticsFlight(int xid, int quantity) throws RemoteException, InvalidTransactionException;
-    public String analyticsRoom(int xid, int quantity) throws RemoteException, InvalidTransactionException;
-    public String analyticsCar(int xid, int quantity) throws RemoteException, InvalidTransactionException;
+    public String analyticsFlight(int xid, int quantity) throws RemoteException, InvalidTransactionException, TransactionAbortedException;
+    public String analyticsRoom(int xid, int quantity) throws RemoteException, InvalidTransactionException, TransactionAbortedException;
+    public String analyticsCar(int xid, int quantity) throws RemoteException, InvalidTransactionException, TransactionAbortedException;
 
     /**
      * Add customer.
@@ -223,7 +227,7 @@ public interface IResourceManager extends Remote
 
     public RMItem readDataWrapper(int xid, String key) throws RemoteException, InvalidTransactionException;
 
-    public String summary(int xid) throws RemoteException;
+    public String summary(int xid) throws RemoteException, InvalidTransactionException, TransactionAbortedException;
 
     /**
      * remove the transaction back to the inventory
@@ -242,6 +246,54 @@ public interface IResourceManager extends Remote
     public int start()
             throws RemoteException;
 
+    /**
+     * this method would start a transaction whose queries read at the
+     * given isolation level
+     *
+     * @return the xid
+     */
+    public int start(IsolationLevel isolation)
+            throws RemoteException;
+
+    /**
+     * read the last committed version of an item, with the changes of the
+     * transaction applied if it has made any here, without locking it or
+     * enlisting this resource manager in the transaction
+     *
+     * @return the item, null if it does not exist
+     */
+    public ReservableItem readCommitted(int xid, String key)
+            throws RemoteException;
+
+    /**
+     * run the operations as one transaction and commit it, in a single call
+     * instead of one per operation. The transaction aborts at the first
+     * operation whose result does not meet its condition
+     *
+     * @return the outcome and the results of the operations run
+     */
+    public TransactionResult executeTransaction(List<Operation> operations)
+            throws RemoteException;
+
+    /**
+     * first phase of the two-phase commit: make the changes of the transaction
+     * durable without applying them, so that it can still commit after a crash
+     *
+     * @return the vote, READ_ONLY if the transaction wrote nothing here and
+     * has already finished, so that it can be left out of the second phase
+     */
+    public Vote prepare(int transactionId)
+            throws RemoteException, InvalidTransactionException;
+
+    /**
+     * the transactions prepared here that still wait for their outcome,
+     * those prepared before a restart included
+     *
+     * @return their xids
+     */
+    public Set<Integer> getInDoubt()
+            throws RemoteException;
+
     /**
      * this method would commit the transaction indicated by the xid
      *
@@ -276,4 +328,12 @@ public interface IResourceManager extends Remote
     public int getPrice(int transactionID, String key, int amount )
             throws InvalidTransactionException, RemoteException;
 
+    /**
+     * dump the live lock table, the wait queues and the lock metrics
+     *
+     * @return the dump, or null if this manager does not hold the locks
+     */
+    public String dumpLocks()
+            throws RemoteException;
+
 }
@@ -0,0 +1,176 @@
+package Server.LockManager;
+
+import java.util.Vector;
+
+/* Lock entry of a data item
+ *
+ * Each data key is interned into a single entry while it is locked or waited
+ * for. An entry left with neither is dropped from its stripe, and a few are
+ * kept aside to be reused for other keys, so that locking an item seldom
+ * allocates. A transaction holds at most one lock per entry, a
+ * conversion changes the mode of that lock in place. Every read or write of an
+ * entry must be done while holding the monitor of its stripe. */
+
+class LockEntry
+{
+	private static final int HOLDERS = 4;
+
+	private String m_data;
+
+	// Index in LockManager.TABLES of the table the data item is a record of, or of the table the data
+	// item is, -1 if it is neither
+	private int m_recordOf;
+	private int m_tableOf;
+
+	// Granted locks, kept in arrays that only ever grow
+	private int[] m_holderXIds = new int[HOLDERS];
+	private TransactionLockObject.LockType[] m_holderTypes = new TransactionLockObject.LockType[HOLDERS];
+	private int m_holderCount = 0;
+
+	// Pending requests, head first, created on the first conflict
+	private Vector<WaitLockObject> m_waiters = null;
+
+	// Next spare entry of the stripe while the entry is not in use
+	LockEntry m_next = null;
+
+	LockEntry(String data)
+	{
+		reset(data);
+	}
+
+	// Intern another key into the entry, which has neither holders nor waiters
+	void reset(String data)
+	{
+		m_data = data;
+		m_recordOf = LockManager.tableIndex(data);
+		m_tableOf = LockManager.tableNameIndex(data);
+	}
+
+	boolean isUnused()
+	{
+		return m_holderCount == 0 && !hasWaiters();
+	}
+
+	public String getDataName()
+	{
+		return m_data;
+	}
+
+	int recordOf()
+	{
+		return m_recordOf;
+	}
+
+	int tableOf()
+	{
+		return m_tableOf;
+	}
+
+	int holderCount()
+	{
+		return m_holderCount;
+	}
+
+	int holderXId(int index)
+	{
+		return m_holderXIds[index];
+	}
+
+	TransactionLockObject.LockType holderType(int index)
+	{
+		return m_holderTypes[index];
+	}
+
+	// The position of the lock of the transaction, or -1 if it does not hold one
+	int holderIndex(int xid)
+	{
+		for (int i = 0; i < m_holderCount; i++) {
+			if (m_holderXIds[i] == xid) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	void addHolder(int xid, TransactionLockObject.LockType lockType)
+	{
+		if (m_holderCount == m_holderXIds.length) {
+			int[] xids = new int[m_holderCount * 2];
+			TransactionLockObject.LockType[] types = new TransactionLockObject.LockType[m_holderCount * 2];
+			System.arraycopy(m_holderXIds, 0, xids, 0, m_holderCount);
+			System.arraycopy(m_holderTypes, 0, types, 0, m_holderCount);
+			m_holderXIds = xids;
+			m_holderTypes = types;
+		}
+		m_holderXIds[m_holderCount] = xid;
+		m_holderTypes[m_holderCount] = lockType;
+		m_holderCount++;
+	}
+
+	void setHolderType(int xid, TransactionLockObject.LockType lockType)
+	{
+		int index = holderIndex(xid);
+		if (index >= 0) {
+			m_holderTypes[index] = lockType;
+		}
+	}
+
+	// Remove the lock of the transaction and return its mode, or null if it held none
+	TransactionLockObject.LockType removeHolder(int xid)
+	{
+		int index = holderIndex(xid);
+		if (index < 0) {
+			return null;
+		}
+		TransactionLockObject.LockType lockType = m_holderTypes[index];
+		m_holderCount--;
+		m_holderXIds[index] = m_holderXIds[m_holderCount];
+		m_holderTypes[index] = m_holderTypes[m_holderCount];
+		m_holderTypes[m_holderCount] = null;
+		return lockType;
+	}
+
+	boolean hasWaiters()
+	{
+		return m_waiters != null && !m_waiters.isEmpty();
+	}
+
+	// The queue of the data item, head first
+	Vector<WaitLockObject> waiters()
+	{
+		if (m_waiters == null) {
+			m_waiters = new Vector<WaitLockObject>(HOLDERS);
+		}
+		return m_waiters;
+	}
+
+	// Append the request to the queue. A conversion is made by a transaction that already holds the
+	// item, it goes ahead of every other request but behind earlier conversions.
+	void enqueue(WaitLockObject waitLockObject)
+	{
+		Vector<WaitLockObject> waiters = waiters();
+		if (!waitLockObject.isConversion()) {
+			waiters.addElement(waitLockObject);
+			return;
+		}
+		int position = 0;
+		while (position < waiters.size() && waiters.elementAt(position).isConversion()) {
+			position++;
+		}
+		waiters.insertElementAt(waitLockObject, position);
+	}
+
+	// Remove this very request, other requests of the same transaction compare equal to it
+	void dequeue(WaitLockObject waitLockObject)
+	{
+		if (m_waiters == null) {
+			return;
+		}
+		for (int i = 0; i < m_waiters.size(); i++) {
+			if (m_waiters.elementAt(i) == waitLockObject) {
+				m_waiters.removeElementAt(i);
+				return;
+			}
+		}
+	}
+}
@@ -2,113 +2,460 @@ package Server.LockManager;
 
 import Server.Common.*;
 
-import java.util.BitSet;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class LockManager
 {
-	private static int TABLE_SIZE = 2039;
+	// How deadlocks are dealt with. Transactions are ordered by xid, which the middleware hands
+	// out in increasing order, so a smaller xid means an older transaction.
+	public enum DeadlockPolicy {
+		TIMEOUT,	// abort requests that have been blocked for DEADLOCK_TIMEOUT
+		DETECTION,	// break cycles in the waits-for graph as soon as they form
+		WAIT_DIE,	// an older requester waits, a younger one aborts right away
+		WOUND_WAIT	// an older requester aborts the younger holders, a younger one waits
+	};
+
+	// Result of LockConflict
+	private static final int CONFLICT = 1;
+	private static final int CONVERSION = 2;
+	private static final int REDUNDANT = 4;
+
+	// Tables of the data items. A record key is the name of its table followed by '-', and a lock on
+	// a record is taken under an intention lock on its table.
+	public static final String FLIGHT_TABLE = "flight";
+	public static final String CAR_TABLE = "car";
+	public static final String ROOM_TABLE = "room";
+	public static final String CUSTOMER_TABLE = "customer";
+	static final String[] TABLES = { FLIGHT_TABLE, CAR_TABLE, ROOM_TABLE, CUSTOMER_TABLE };
+
+	private static int STRIPE_COUNT = 64;
 	private static int DEADLOCK_TIMEOUT = 10000;
+	private static int ESCALATION_THRESHOLD = 64;
+
+	// Told about the transactions wounded while they are running rather than waiting for a lock, so that
+	// they can be aborted without waiting for their next request. Called while holding a monitor of the
+	// lock manager: it must hand the abort over to another thread.
+	public interface WoundHandler
+	{
+		public void wounded(int xid);
+	}
 
-	private static TPHashTable lockTable = new TPHashTable(LockManager.TABLE_SIZE);
-	private static TPHashTable stampTable = new TPHashTable(LockManager.TABLE_SIZE);
-	private static TPHashTable waitTable = new TPHashTable(LockManager.TABLE_SIZE);
+	// Requests that do not have to wait all return one of these, so granting them allocates nothing
+	private static final CompletableFuture<Boolean> GRANTED = CompletableFuture.completedFuture(true);
+	private static final CompletableFuture<Boolean> INVALID = CompletableFuture.completedFuture(false);
+
+	// Fires the timeouts of queued requests, no thread is blocked while a request waits
+	private static final ScheduledThreadPoolExecutor s_timer = createTimer();
+
+	private LockTable lockTable = new LockTable(LockManager.STRIPE_COUNT);
+	private LockMetrics metrics = new LockMetrics(this.lockTable);
+	private WaitsForGraph waitsForGraph = new WaitsForGraph();
+	private DeadlockPolicy deadlockPolicy = DeadlockPolicy.DETECTION;
+	private int deadlockTimeout = LockManager.DEADLOCK_TIMEOUT;
+	private int escalationThreshold = LockManager.ESCALATION_THRESHOLD;
+	private volatile WoundHandler woundHandler = null;
 
 	public LockManager()
 	{
 		super();
 	}
 
+	public LockManager(DeadlockPolicy deadlockPolicy)
+	{
+		super();
+		this.deadlockPolicy = deadlockPolicy;
+	}
+
+	public LockManager(DeadlockPolicy deadlockPolicy, int deadlockTimeout)
+	{
+		super();
+		this.deadlockPolicy = deadlockPolicy;
+		this.deadlockTimeout = deadlockTimeout;
+	}
+
+	public DeadlockPolicy getDeadlockPolicy()
+	{
+		return this.deadlockPolicy;
+	}
+
+	public int getEscalationThreshold()
+	{
+		return this.escalationThreshold;
+	}
+
+	public LockManagerMXBean getMetrics()
+	{
+		return this.metrics;
+	}
+
+	// Expose the metrics over JMX, under Server.LockManager:type=LockManager,name=<name>
+	public void registerMBean(String name) throws JMException
+	{
+		ObjectName objectName = new ObjectName("Server.LockManager:type=LockManager,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, objectName);
+	}
+
+	// The live lock table followed by the metrics, for the admin command of the middleware
+	public String dump()
+	{
+		return this.lockTable.dump() + "\n" + this.metrics;
+	}
+
+	// Without a handler, a wounded transaction that is running finds out on its next lock request
+	public void setWoundHandler(WoundHandler woundHandler)
+	{
+		this.woundHandler = woundHandler;
+	}
+
+	// Number of record locks a transaction may hold in a table before the lock manager tries to
+	// replace them with a single lock on the table, 0 never escalates
+	public void setEscalationThreshold(int escalationThreshold)
+	{
+		this.escalationThreshold = escalationThreshold;
+	}
+
+	// Blocking variant of lockAsync, for callers that have nothing else to do while they wait
 	public boolean Lock(int xid, String data, TransactionLockObject.LockType lockType) throws DeadlockException
+	{
+		return await(lockAsync(xid, data, lockType));
+	}
+
+
+	// Blocking variant of lockAllAsync
+	public boolean lockAll(int xid, Map<String, TransactionLockObject.LockType> locks) throws DeadlockException
+	{
+		return await(lockAllAsync(xid, locks));
+	}
+
+
+	// Lock every data item of the map in the mode it maps to, in the canonical order of LOCK_ORDER. Every
+	// caller takes its items in that same order, so transactions locking with lockAll never wait for
+	// each other in a cycle. The items are requested one after the other, at most one request is queued
+	// at a time. If one of them is refused, the locks this call took are released again before the
+	// future fails, and the locks the transaction held before are converted back to the mode they had.
+	// The intention locks taken on the tables on the way are kept, like after a refused lockAsync.
+	public CompletableFuture<Boolean> lockAllAsync(int xid, Map<String, TransactionLockObject.LockType> locks)
+	{
+		if (xid < 0 || locks == null) {
+			return INVALID;
+		}
+
+		TreeMap<String, TransactionLockObject.LockType> ordered = new TreeMap<String, TransactionLockObject.LockType>(LOCK_ORDER);
+		for (Map.Entry<String, TransactionLockObject.LockType> lock : locks.entrySet()) {
+			if (lock.getKey() == null || lock.getValue() == null || lock.getValue() == TransactionLockObject.LockType.LOCK_UNKNOWN) {
+				return INVALID;
+			}
+			ordered.put(lock.getKey(), lock.getValue());
+		}
+
+		Trace.info("LM::lockAll(" + xid + ", " + ordered + ") called");
+		CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		TransactionLocks owner = this.lockTable.transactionFor(xid);
+		LockNext(xid, owner, owner.generation(), ordered.entrySet().iterator(), new Vector<String>(),
+			new HashMap<String, TransactionLockObject.LockType[]>(), result);
+		return result;
+	}
+
+
+	// Request the remaining items of lockAllAsync, going on from the thread that completes a queued request.
+	// The items converted by the call map to the mode they were held in before and the mode they were
+	// converted to.
+	private void LockNext(final int xid, final TransactionLocks owner, final int generation,
+		final Iterator<Map.Entry<String, TransactionLockObject.LockType>> locks, final Vector<String> acquired,
+		final HashMap<String, TransactionLockObject.LockType[]> converted, final CompletableFuture<Boolean> result)
+	{
+		while (locks.hasNext()) {
+			Map.Entry<String, TransactionLockObject.LockType> lock = locks.next();
+			final String data = lock.getKey();
+			final TransactionLockObject.LockType held = HeldMode(xid, data);
+			final TransactionLockObject.LockType wanted = (held == null) ? lock.getValue() : join(held, lock.getValue());
+
+			CompletableFuture<Boolean> future = lockAsync(xid, data, lock.getValue(), owner, generation);
+			if (future == GRANTED) {
+				taken(data, held, wanted, acquired, converted);
+				continue;
+			}
+
+			future.whenComplete(new BiConsumer<Boolean, Throwable>() {
+				public void accept(Boolean granted, Throwable failure)
+				{
+					if (failure == null && granted) {
+						taken(data, held, wanted, acquired, converted);
+						LockNext(xid, owner, generation, locks, acquired, converted, result);
+						return;
+					}
+
+					for (String taken : acquired) {
+						Release(xid, taken);
+					}
+					for (Map.Entry<String, TransactionLockObject.LockType[]> conversion : converted.entrySet()) {
+						Downgrade(xid, owner, generation, conversion.getKey(), conversion.getValue()[1], conversion.getValue()[0]);
+					}
+					if (failure == null) {
+						result.complete(false);
+					} else {
+						result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+					}
+				}
+			});
+			return;
+		}
+		result.complete(true);
+	}
+
+
+	// Note an item locked by lockAllAsync, as taken if it was not held before and as converted if its
+	// mode changed
+	private static void taken(String data, TransactionLockObject.LockType held, TransactionLockObject.LockType wanted,
+		Vector<String> acquired, HashMap<String, TransactionLockObject.LockType[]> converted)
+	{
+		if (held == null) {
+			acquired.addElement(data);
+		} else if (wanted != held) {
+			converted.put(data, new TransactionLockObject.LockType[] { held, wanted });
+		}
+	}
+
+
+	// Canonical order of lockAll. Customers come first because a transaction has to read a customer
+	// before it knows which items the customer reserved, the other items follow in key order.
+	private static final Comparator<String> LOCK_ORDER = new Comparator<String>() {
+		public int compare(String a, String b)
+		{
+			boolean customerA = a.startsWith(CUSTOMER_TABLE);
+			boolean customerB = b.startsWith(CUSTOMER_TABLE);
+			if (customerA != customerB) {
+				return customerA ? -1 : 1;
+			}
+			return a.compareTo(b);
+		}
+	};
+
+
+	// Wait for a request of this lock manager, whether it is granted or refused
+	private static boolean await(CompletableFuture<Boolean> future) throws DeadlockException
+	{
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				}
+				catch (InterruptedException e) {
+					// The request stays queued, only a grant, a deadlock or the timeout ends it
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof DeadlockException) {
+				throw (DeadlockException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+	// Request a lock without blocking. The future completes with true once the lock is granted, or
+	// exceptionally with a DeadlockException if the request is aborted, and false if a parameter is
+	// invalid. Dependent actions run in the thread that completes the future, which never holds a
+	// monitor of the lock manager at that point.
+	//
+	// The data is either a record key or a table name. A record is locked once its table has been
+	// locked with the matching intention mode, so that a lock on the whole table conflicts with it.
+	public CompletableFuture<Boolean> lockAsync(final int xid, final String data, final TransactionLockObject.LockType lockType)
 	{
 		// if any parameter is invalid, then return false
-		if (xid < 0) { 
-			return false;
+		if (xid < 0) {
+			return INVALID;
 		}
 
 		if (data == null) {
-			return false;
+			return INVALID;
 		}
 
-		if (lockType == TransactionLockObject.LockType.LOCK_UNKNOWN) { 
-			return false;
+		if (lockType == TransactionLockObject.LockType.LOCK_UNKNOWN) {
+			return INVALID;
 		}
 
-		Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") called");
+		TransactionLocks owner = this.lockTable.transactionFor(xid);
+		return lockAsync(xid, data, lockType, owner, owner.generation());
+	}
 
-		// Two objects in lock table for easy lookup
-		TransactionLockObject xLockObject = new TransactionLockObject(xid, data, lockType);
-		DataLockObject dataLockObject = new DataLockObject(xid, data, lockType);
 
-		// Return true when there is no lock conflict or throw a deadlock exception
-		try {
-			boolean bConflict = true;
-			BitSet bConvert = new BitSet(1);
-			while (bConflict) {
-				synchronized (this.lockTable) {
-					// Check if this lock request conflicts with existing locks
-					bConflict = LockConflict(dataLockObject, bConvert);
-					if (!bConflict) {
-						// No lock conflict
-						synchronized (this.stampTable) {
-							// Remove the timestamp (if any) for this lock request
-							TimeObject timeObject = new TimeObject(xid);
-							this.stampTable.remove(timeObject);
-						}
-						synchronized (this.waitTable) {
-							// Remove the entry for this transaction from waitTable (if it
-							// is there) as it has been granted its lock request
-							WaitLockObject waitLockObject = new WaitLockObject(xid, data, lockType);
-							this.waitTable.remove(waitLockObject);
-						}
+	// Request a lock for the transaction that the record was handed to in that generation. A request
+	// going on after a wait is refused if the transaction has released its locks in the meantime.
+	private CompletableFuture<Boolean> lockAsync(final int xid, final String data, final TransactionLockObject.LockType lockType,
+		final TransactionLocks owner, final int generation)
+	{
+		// The traces are only built when they are printed, the uncontended path allocates nothing
+		if (Trace.isInfoEnabled()) {
+			Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") called");
+		}
 
-						if (bConvert.get(0) == true) {
-							// TODO: Lock conversion
-							// Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") converted");
-							
-							/*winnie********************************************************************************/
-							//first remove the old reading lock
-							TransactionLockObject oldLockObject = new TransactionLockObject(xid, data, TransactionLockObject.LockType.LOCK_READ);
-							DataLockObject oldDataLockObject = new DataLockObject(xid, data, TransactionLockObject.LockType.LOCK_READ);
-							
-							if(this.lockTable.get(oldLockObject) !=null) {
-								this.lockTable.remove(this.lockTable.get(oldLockObject) );
-							}
-							if(this.lockTable.get(oldDataLockObject) != null) {
-								this.lockTable.remove(this.lockTable.get(oldDataLockObject) );
-							}
-
-							// Then add the new write lock
-							this.lockTable.add(xLockObject);
-							this.lockTable.add(dataLockObject);
-							Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") converted");
-							/*winnie********************************************************************************/
-							
-						} else {
-							// Lock request that is not lock conversion
-							this.lockTable.add(xLockObject);
-							this.lockTable.add(dataLockObject);
-
-							Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") granted");
-						}
-					}
+		final int table = tableIndex(data);
+		if (table < 0) {
+			return LockItem(xid, data, lockType, owner, generation);
+		}
+
+		// A lock on the whole table, taken explicitly or by escalation, covers the record already
+		if (owner.isLive(generation) && !this.waitsForGraph.isVictim(xid)) {
+			TransactionLockObject.LockType tableLockType = owner.tableLock(table);
+			if (tableLockType != null && covers(tableLockType, lockType)) {
+				if (Trace.isInfoEnabled()) {
+					Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") covered by the " + tableLockType + " lock on the table");
 				}
-				if (bConflict) {
-					// Lock conflict exists, wait
-					WaitLock(dataLockObject);
+				this.metrics.redundant();
+				return GRANTED;
+			}
+		}
+
+		CompletableFuture<Boolean> tableLock = LockItem(xid, TABLES[table], intention(lockType), owner, generation);
+		if (tableLock == GRANTED) {
+			// The transaction usually holds the intention lock already
+			return LockRecord(xid, data, lockType, table, owner, generation);
+		}
+		return tableLock.thenCompose(new Function<Boolean, CompletionStage<Boolean>>() {
+			public CompletionStage<Boolean> apply(Boolean granted)
+			{
+				// The transaction may have been aborted while it waited for the table
+				return LockRecord(xid, data, lockType, table, owner, generation);
+			}
+		});
+	}
+
+
+	// Lock a record once its table has been locked with an intention mode, and escalate to a lock on
+	// the table if the transaction now holds too many record locks in it
+	private CompletableFuture<Boolean> LockRecord(int xid, String data, TransactionLockObject.LockType lockType, int table,
+		TransactionLocks owner, int generation)
+	{
+		CompletableFuture<Boolean> recordLock = LockItem(xid, data, lockType, owner, generation);
+		if (recordLock == GRANTED && this.escalationThreshold > 0) {
+			Escalate(xid, table, owner, generation);
+		}
+		return recordLock;
+	}
+
+
+	// Lock a single data item, record or table
+	private CompletableFuture<Boolean> LockItem(int xid, String data, TransactionLockObject.LockType lockType,
+		TransactionLocks owner, int generation)
+	{
+		// The record is checked again when the lock is granted or queued, the transaction may finish
+		// in between
+		if (!owner.isLive(generation)) {
+			return finished(xid, data, lockType);
+		}
+
+		// A transaction wounded by an older one while it was running must not take any more locks
+		if (this.waitsForGraph.isVictim(xid)) {
+			Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") refused, the transaction has been wounded");
+			CompletableFuture<Boolean> refused = new CompletableFuture<Boolean>();
+			refused.completeExceptionally(new DeadlockException(xid, "Wounded by an older transaction"));
+			return refused;
+		}
+
+		// Only the stripe owning this data item is locked, requests on other items proceed in parallel
+		LockTable.Stripe stripe = this.lockTable.stripeFor(data);
+		WaitLockObject waitLockObject = null;
+		Vector<WaitLockObject> completed = null;
+
+		synchronized (stripe) {
+			LockEntry entry = stripe.entry(data);
+
+			// A transaction holds a single lock per data item, asking for another mode on top of the one
+			// it holds is asking for the mode that covers both
+			int index = entry.holderIndex(xid);
+			if (index >= 0) {
+				lockType = join(entry.holderType(index), lockType);
+			}
+
+			// Check if this lock request conflicts with existing locks
+			int conflict = LockConflict(entry, xid, lockType);
+			if ((conflict & REDUNDANT) != 0) {
+				// Ignore redundant lock requests
+				if (Trace.isInfoEnabled()) {
+					Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") redundant lock request");
+				}
+				// The intention lock on a table is redundant for every record after the first one
+				if (entry.tableOf() < 0) {
+					this.metrics.redundant();
 				}
+				return GRANTED;
+			}
+			boolean bConvert = (conflict & CONVERSION) != 0;
+
+			// A new request queues behind the waiting requests it conflicts with, so that a stream of
+			// readers cannot starve a writer. A conversion is made by a holder and is served first.
+			if ((conflict & CONFLICT) == 0 && (bConvert || !conflictsAhead(entry, entry.hasWaiters() ? entry.waiters().size() : 0, lockType))) {
+				if (!GrantLock(entry, xid, owner, generation, lockType, bConvert)) {
+					stripe.prune(entry);
+					return finished(xid, data, lockType);
+				}
+				if (bConvert && entry.hasWaiters()) {
+					// The conversion went ahead of every request waiting for this item
+					completed = reorderedWaiters(entry, xid, lockType, null, completed);
+				}
+			}
+			else {
+				// Lock conflict exists, queue the request
+				waitLockObject = new WaitLockObject(xid, data, lockType);
+				waitLockObject.setConversion(bConvert);
+				if (!owner.setPending(waitLockObject, generation)) {
+					stripe.prune(entry);
+					return finished(xid, data, lockType);
+				}
+				waitLockObject.setOwner(owner, generation);
+				entry.enqueue(waitLockObject);
+				this.metrics.queued(data);
+				Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") queued");
+
+				if (bConvert) {
+					// The conversion jumped ahead of the requests already waiting for this item
+					completed = reorderedWaiters(entry, xid, lockType, waitLockObject, completed);
+				}
+				completed = WaitLock(entry, waitLockObject, completed);
 			}
-		} 
-		catch (DeadlockException deadlock) {
-			throw deadlock;
 		}
-		catch (RedundantLockRequestException redundantlockrequest) {
-			// Ignore redundant lock requests
-			Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") " + redundantlockrequest.getLocalizedMessage());
-			return true;
-		} 
 
-		return true;
+		complete(completed);
+		if (waitLockObject == null) {
+			return GRANTED;
+		}
+		return waitLockObject.getFuture();
+	}
+
+
+	// Refuse a request of a transaction that has released its locks
+	private static CompletableFuture<Boolean> finished(int xid, String data, TransactionLockObject.LockType lockType)
+	{
+		Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") refused, the transaction has finished");
+		CompletableFuture<Boolean> refused = new CompletableFuture<Boolean>();
+		refused.completeExceptionally(new DeadlockException(xid, "The transaction was aborted while waiting"));
+		return refused;
 	}
 
 
@@ -120,268 +467,748 @@ public class LockManager
 			return false;
 		}
 
-		TransactionLockObject lockQuery = new TransactionLockObject(xid, "", TransactionLockObject.LockType.LOCK_UNKNOWN); // Only used in elements() call below.
-		synchronized(this.lockTable) {
-			Vector vect = this.lockTable.elements(lockQuery);
+		Vector<WaitLockObject> completed = null;
+
+		TransactionLocks transactionLocks = this.lockTable.findTransaction(xid);
+		if (transactionLocks != null) {
+			// From now on no lock is granted to the transaction and no request of it is queued, a request
+			// that was waiting for another lock cannot take one behind our back
+			transactionLocks.finish();
+
+			// The transaction may be aborted while one of its requests is still queued
+			WaitLockObject pending = transactionLocks.takePending();
+			if (pending != null) {
+				LockTable.Stripe stripe = this.lockTable.stripeFor(pending.getDataName());
+				synchronized (stripe) {
+					if (pending.isWaiting()) {
+						LockEntry entry = stripe.entry(pending.getDataName());
+						completed = failRequest(entry, pending, "The transaction was aborted while waiting", completed);
+						stripe.prune(entry);
+					}
+				}
+			}
 
-			TransactionLockObject xLockObject;
-			Vector waitVector;
-			WaitLockObject waitLockObject;
-			int size = vect.size();
+			this.lockTable.removeTransaction(xid);
+			int size = transactionLocks.size();
 
 			for (int i = (size - 1); i >= 0; i--)
 			{
-				xLockObject = (TransactionLockObject)vect.elementAt(i);
-				this.lockTable.remove(xLockObject);
-
-				Trace.info("LM::unlock(" + xid + ", " + xLockObject.getDataName() + ", " + xLockObject.getLockType() + ") unlocked");
-
-				DataLockObject dataLockObject = new DataLockObject(xLockObject.getXId(), xLockObject.getDataName(), xLockObject.getLockType());
-				this.lockTable.remove(dataLockObject);
-
-				// Check if there are any waiting transactions
-				synchronized(this.waitTable) {
-					// Get all the transactions waiting on this dataLock
-					waitVector = this.waitTable.elements(dataLockObject);
-					int waitSize = waitVector.size();
-					for (int j = 0; j < waitSize; j++)
-					{
-						waitLockObject = (WaitLockObject)waitVector.elementAt(j);
-						if (waitLockObject.getLockType() == TransactionLockObject.LockType.LOCK_WRITE)
-						{
-							if (j == 0)
-							{
-								// Get all other transactions which have locks on the
-								// data item just unlocked
-								Vector vect1 = this.lockTable.elements(dataLockObject);
-								int vectlSize = vect1.size();
-
-								boolean free = true;
-								for (int k = 0; k < vectlSize; k++)
-								{
-									DataLockObject l_dl = (DataLockObject)vect1.elementAt(k);
-									if (l_dl.getXId() != waitLockObject.getXId())
-									{
-										// Some other transaction still has a lock on the data item
-										// just unlocked. So, WRITE lock cannot be granted
-										free = false;
-										break;
-									}
-								}
-								// Remove interrupted thread from waitTable only if no
-								// other transaction has locked this data item
-								if (!free)
-								{
-									break;
-								}
-
-								this.waitTable.remove(waitLockObject);     
-								try {
-									synchronized(waitLockObject.getThread()) {
-										waitLockObject.getThread().notify();
-									}    
-								}
-								catch (Exception e) {
-									System.out.println("Exception on unlock\n" + e.getMessage());
-								}        
-							}
-
-							// Stop granting READ locks as soon as you find a WRITE lock
-							// request in the queue of requests
-							break;
-						}
-						else if (waitLockObject.getLockType() == TransactionLockObject.LockType.LOCK_READ)
-						{
-							// Remove interrupted thread from waitTable
-							this.waitTable.remove(waitLockObject);    
-
-							try {
-								synchronized (waitLockObject.getThread()) {
-									waitLockObject.getThread().notify();
-								}    
-							}
-							catch (Exception e) {
-								System.out.println("Exception e\n" + e.getMessage());
-							}
-						}
+				LockEntry entry = transactionLocks.entryAt(i);
+
+				LockTable.Stripe stripe = this.lockTable.stripeFor(entry.getDataName());
+				synchronized (stripe) {
+					TransactionLockObject.LockType lockType = entry.removeHolder(xid);
+
+					if (Trace.isInfoEnabled()) {
+						Trace.info("LM::unlock(" + xid + ", " + entry.getDataName() + ", " + lockType + ") unlocked");
 					}
-				} 
+
+					// Hand the lock over to the requests waiting at the head of the queue
+					completed = GrantWaiters(entry, completed);
+					stripe.prune(entry);
+				}
 			}
-		} 
 
+			this.lockTable.recycleTransaction(transactionLocks);
+		}
+
+		// Nobody can be waiting for this transaction anymore
+		this.waitsForGraph.removeTransaction(xid);
+
+		complete(completed);
 		return true;
 	}
 
 
-	// Returns true if the lock request on dataObj conflicts with already existing locks. If the lock request is a
-	// redundant one (for eg: if a transaction holds a read lock on certain data item and again requests for a read
-	// lock), then this is ignored. This is done by throwing RedundantLockRequestException which is handled 
-	// appropriately by the caller. If the lock request is a conversion from READ lock to WRITE lock, then bitset 
-	// is set. 
-	private boolean LockConflict(DataLockObject dataLockObject, BitSet bitset) throws DeadlockException, RedundantLockRequestException
+	// The mode the transaction holds the data item in, or null if it does not hold it
+	private TransactionLockObject.LockType HeldMode(int xid, String data)
 	{
-		Vector vect = this.lockTable.elements(dataLockObject);
-		int size = vect.size();
-		
-		/*winnie*******************************************************************/
-		// check if there's locking type conversion
-		boolean readWrite = false;
-		/*winnie*******************************************************************/
+		LockTable.Stripe stripe = this.lockTable.stripeFor(data);
+		synchronized (stripe) {
+			LockEntry entry = stripe.find(data);
+			int index = (entry == null) ? -1 : entry.holderIndex(xid);
+			return (index < 0) ? null : entry.holderType(index);
+		}
+	}
+
 
-		// As soon as a lock that conflicts with the current lock request is found, return true
-		for (int i = 0; i < size; i++)
+	// Convert a lock of the transaction back to the weaker mode it held before, unless the lock has
+	// changed since, e.g. by an escalation, and let the requests it blocked go
+	private void Downgrade(int xid, TransactionLocks owner, int generation, String data, TransactionLockObject.LockType converted,
+		TransactionLockObject.LockType previous)
+	{
+		Vector<WaitLockObject> completed = null;
+		LockTable.Stripe stripe = this.lockTable.stripeFor(data);
+		synchronized (stripe) {
+			LockEntry entry = stripe.find(data);
+			int index = (entry == null) ? -1 : entry.holderIndex(xid);
+			if (index < 0 || entry.holderType(index) != converted) {
+				return;
+			}
+			if (entry.tableOf() >= 0 && !owner.setTableLock(entry.tableOf(), previous, generation)) {
+				// The transaction is releasing the lock anyway
+				return;
+			}
+			entry.setHolderType(xid, previous);
+			Trace.info("LM::downgrade(" + xid + ", " + data + ", " + previous + ") converted back from " + converted);
+			completed = GrantWaiters(entry, completed);
+		}
+		complete(completed);
+	}
+
+
+	// Release a single lock of the transaction, one that it took without using it yet. Locks are
+	// otherwise only released all together by UnlockAll.
+	private void Release(int xid, String data)
+	{
+		Vector<WaitLockObject> completed = null;
+		LockTable.Stripe stripe = this.lockTable.stripeFor(data);
+		synchronized (stripe) {
+			LockEntry entry = stripe.find(data);
+			if (entry != null && entry.removeHolder(xid) != null) {
+				TransactionLocks transactionLocks = this.lockTable.findTransaction(xid);
+				if (transactionLocks != null) {
+					transactionLocks.remove(entry);
+				}
+				Trace.info("LM::release(" + xid + ", " + data + ") released");
+				completed = GrantWaiters(entry, completed);
+				stripe.prune(entry);
+			}
+		}
+		complete(completed);
+	}
+
+
+	// Replace the record locks of the transaction in the table with a single lock on the table, S if it
+	// only read records and X otherwise. The table lock is only taken if it can be granted right away,
+	// a transaction never waits to escalate, and the record locks are kept if it cannot.
+	private void Escalate(int xid, int table, TransactionLocks transactionLocks, int generation)
+	{
+		if (!transactionLocks.isLive(generation) || !transactionLocks.escalationDue(table, this.escalationThreshold)) {
+			return;
+		}
+
+		TransactionLockObject.LockType held = transactionLocks.tableLock(table);
+		if (held == null) {
+			return;
+		}
+		TransactionLockObject.LockType lockType = TransactionLockObject.LockType.LOCK_WRITE;
+		if (held == TransactionLockObject.LockType.LOCK_INTENTION_READ) {
+			lockType = TransactionLockObject.LockType.LOCK_READ;
+		}
+
+		String data = TABLES[table];
+		boolean escalated = false;
+		LockTable.Stripe stripe = this.lockTable.stripeFor(data);
+		synchronized (stripe) {
+			LockEntry entry = stripe.entry(data);
+			// Neither the holders nor the queued requests may conflict, the escalation must not make
+			// anybody wait who would not have waited otherwise
+			if (!hasConflict(entry, xid, lockType) && !conflictsAhead(entry, entry.hasWaiters() ? entry.waiters().size() : 0, lockType)) {
+				escalated = GrantLock(entry, xid, transactionLocks, generation, lockType, true);
+			}
+		}
+
+		if (!escalated) {
+			Trace.info("LM::escalate(" + xid + ", " + data + ", " + lockType + ") conflicts, keeping " +
+				transactionLocks.recordCount(table) + " record locks");
+			transactionLocks.postponeEscalation(table, this.escalationThreshold);
+			return;
+		}
+
+		// Nobody else can be waiting for these records, the table lock conflicts with any lock that
+		// could have made them wait
+		Vector<LockEntry> records = transactionLocks.removeRecords(table, generation);
+		Vector<WaitLockObject> completed = null;
+		for (LockEntry record : records) {
+			LockTable.Stripe recordStripe = this.lockTable.stripeFor(record.getDataName());
+			synchronized (recordStripe) {
+				record.removeHolder(xid);
+				completed = GrantWaiters(record, completed);
+				recordStripe.prune(record);
+			}
+		}
+		this.metrics.escalation();
+		Trace.info("LM::escalate(" + xid + ", " + data + ", " + lockType + ") replaced " + records.size() + " record locks");
+		complete(completed);
+	}
+
+
+	// Record a granted lock in the entry and in the locks of the transaction. Returns false, granting
+	// nothing, if the transaction has finished or its record has been handed to another transaction since
+	// the generation. Must be called while holding the monitor of the stripe.
+	private boolean GrantLock(LockEntry entry, int xid, TransactionLocks transactionLocks, int generation,
+		TransactionLockObject.LockType lockType, boolean bConvert)
+	{
+		if (!bConvert && !transactionLocks.add(entry, generation)) {
+			return false;
+		}
+		if (entry.tableOf() >= 0 && !transactionLocks.setTableLock(entry.tableOf(), lockType, generation) && bConvert) {
+			return false;
+		}
+		this.metrics.granted(bConvert);
+
+		if (bConvert) {
+			// Lock conversion: the transaction already holds the entry, only the mode changes
+			entry.setHolderType(xid, lockType);
+			if (Trace.isInfoEnabled()) {
+				Trace.info("LM::lock(" + xid + ", " + entry.getDataName() + ", " + lockType + ") converted");
+			}
+		} else {
+			// Lock request that is not lock conversion
+			entry.addHolder(xid, lockType);
+			if (Trace.isInfoEnabled()) {
+				Trace.info("LM::lock(" + xid + ", " + entry.getDataName() + ", " + lockType + ") granted");
+			}
+		}
+		return true;
+	}
+
+
+	// Grant the queued requests of the data item that are compatible with the holders and with every
+	// request still queued ahead of them, so either a batch of readers or a single writer, along with
+	// the intention locks that fit next to them. Their futures are completed by the caller once it
+	// released the monitor of the stripe.
+	private Vector<WaitLockObject> GrantWaiters(LockEntry entry, Vector<WaitLockObject> completed)
+	{
+		int position = 0;
+		while (entry.hasWaiters() && position < entry.waiters().size()) {
+			WaitLockObject waitLockObject = entry.waiters().elementAt(position);
+			if (hasConflict(entry, waitLockObject.getXId(), waitLockObject.getLockType()) || conflictsAhead(entry, position, waitLockObject.getLockType())) {
+				if (exclusive(waitLockObject.getLockType())) {
+					// Every request behind it conflicts with it
+					break;
+				}
+				position++;
+				continue;
+			}
+
+			entry.dequeue(waitLockObject);
+			clearPending(waitLockObject);
+			this.metrics.waited(System.nanoTime() - waitLockObject.getQueuedTime());
+			// The transaction may be releasing its locks and not have cancelled this request yet
+			if (GrantLock(entry, waitLockObject.getXId(), waitLockObject.getOwner(), waitLockObject.getGeneration(),
+				waitLockObject.getLockType(), waitLockObject.isConversion())) {
+				waitLockObject.setGranted();
+			} else {
+				waitLockObject.setFailure("The transaction was aborted while waiting");
+			}
+			this.waitsForGraph.removeWaiter(waitLockObject.getXId());
+			completed = defer(completed, waitLockObject);
+		}
+		return completed;
+	}
+
+
+	// Returns a combination of CONFLICT, CONVERSION and REDUNDANT for a lock request on the entry. If the lock
+	// request is a redundant one (for eg: if a transaction holds a read lock on certain data item and again
+	// requests for a read lock), then this is ignored by the caller. If the lock request is a conversion to a
+	// stronger mode, for eg from READ lock to WRITE lock, then CONVERSION is set. CONFLICT is set if another
+	// transaction holds a lock that is incompatible with the request.
+	private int LockConflict(LockEntry entry, int xid, TransactionLockObject.LockType lockType)
+	{
+		int result = 0;
+
+		// First look at the lock the transaction already has on this data item, which means that it
+		// is either relocking it or is converting the lock
+		int index = entry.holderIndex(xid);
+		if (index >= 0)
+		{
+			if (covers(entry.holderType(index), lockType))
+			{
+				// Since transaction already has a lock at least as strong (for eg a WRITE lock when
+				// it asks for a READ lock) on this data item, this lock request is redundant.
+				return REDUNDANT;
+			}
+			else
+			{
+				// The transaction already had a weaker lock, for eg a READ lock, and asks for a
+				// stronger one, for eg a WRITE lock, meaning: locking type conversion
+				result |= CONVERSION;
+			}
+		}
+
+		// As soon as a lock of another transaction that conflicts with the current lock request is found, return true
+		if (hasConflict(entry, xid, lockType))
 		{
-			DataLockObject l_dataLockObject = (DataLockObject)vect.elementAt(i);
-			if (dataLockObject.getXId() == l_dataLockObject.getXId())
-			{    
-				// The transaction already has a lock on this data item which means that it is either
-				// relocking it or is converting the lock
-				if (dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_READ)
+			Trace.info("LM::lockConflict(" + xid + ", " + entry.getDataName() + ") Want " +
+				lockType + ", transactions " + conflictingHolders(entry, xid, lockType) + " hold incompatible locks");
+			result |= CONFLICT;
+		}
+
+		return result;
+	}
+
+
+	// Apply the deadlock policy to the request that was just queued, and arm the timeout that is the
+	// fallback for the deadlocks the policy cannot see. Must be called while holding the monitor of
+	// the stripe.
+	private Vector<WaitLockObject> WaitLock(LockEntry entry, WaitLockObject waitLockObject, Vector<WaitLockObject> completed)
+	{
+		Trace.info("LM::waitLock(" + waitLockObject.getXId() + ", " + waitLockObject.getDataName() + ", " + waitLockObject.getLockType() + ") called");
+
+		switch (this.deadlockPolicy) {
+			case DETECTION:
+				completed = detectDeadlock(entry, waitLockObject, completed);
+				break;
+			case WAIT_DIE:
+			case WOUND_WAIT:
+				completed = preventDeadlock(entry, waitLockObject, completed);
+				break;
+			default:
+				break;
+		}
+
+		if (waitLockObject.isWaiting()) {
+			final WaitLockObject timedOut = waitLockObject;
+			waitLockObject.setTimeout(s_timer.schedule(new Runnable() {
+				public void run()
 				{
-					// Since transaction already has a lock (may be READ, may be WRITE. we don't
-					// care) on this data item and it is requesting a READ lock, this lock request
-					// is redundant.
-					throw new RedundantLockRequestException(dataLockObject.getXId(), "redundant READ lock request");
+					if (cancelRequest(timedOut, "Sleep timeout: deadlocked")) {
+						metrics.timeout();
+					}
 				}
-				else if (dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_WRITE)
-				{
-					// Transaction already has a lock and is requesting a WRITE lock
-					// now there are two cases to analyze here
-					// (1) transaction already had a READ lock
-					// (2) transaction already had a WRITE lock
-					// Seeing the comments at the top of this function might be helpful
-
-					//TODO: Lock conversion
-					/*winnie*******************************************************************/
-					// (1) transaction already had a READ lock
-					if (l_dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_READ) 
-					{
-						// keep looping to see 
-						//if there's some other transactions holding the lock of this object
-						readWrite=true;
-						continue;
+			}, this.deadlockTimeout, TimeUnit.MILLISECONDS));
+		}
+		return completed;
+	}
+
+
+	// Record what this request waits for and break the cycle it closes, if any. The victim is the
+	// transaction in the cycle holding the fewest locks, which is the one that has done the least
+	// work, and the youngest one among those.
+	private Vector<WaitLockObject> detectDeadlock(LockEntry entry, WaitLockObject waitLockObject, Vector<WaitLockObject> completed)
+	{
+		long searchStart = System.nanoTime();
+		int xid = waitLockObject.getXId();
+
+		Vector<Integer> cycle = this.waitsForGraph.addWaits(xid, waitsFor(entry, waitLockObject));
+		while (cycle != null) {
+			int victim = xid;
+			int victimLocks = this.lockTable.countTransactionLocks(xid);
+			for (Integer member : cycle) {
+				int memberLocks = this.lockTable.countTransactionLocks(member);
+				if (memberLocks < victimLocks || (memberLocks == victimLocks && member > victim)) {
+					victim = member;
+					victimLocks = memberLocks;
+				}
+			}
+
+			this.metrics.deadlock();
+			long searchTime = (System.nanoTime() - searchStart) / 1000;
+			Trace.info("LM::deadlock(" + xid + ", " + waitLockObject.getDataName() + ") waits-for cycle " + cycle +
+				" detected in " + searchTime + " us, aborting " + victim);
+
+			if (victim == xid) {
+				return failRequest(entry, waitLockObject, "Waits-for cycle " + cycle, completed);
+			}
+
+			// The victim may be queued on another stripe, its request is cancelled once this monitor is released
+			if (this.waitsForGraph.markVictim(victim)) {
+				completed = deferVictim(completed, victim);
+			}
+
+			// The request may close more than one cycle
+			cycle = this.waitsForGraph.cycleThrough(xid);
+		}
+		return completed;
+	}
+
+
+	// A conversion is served before the requests already queued for the data item, so those of them it
+	// conflicts with now wait for the converting transaction as well. The conversion is either queued
+	// itself or was granted right away.
+	private Vector<WaitLockObject> reorderedWaiters(LockEntry entry, int xid, TransactionLockObject.LockType lockType, WaitLockObject conversion, Vector<WaitLockObject> completed)
+	{
+		Vector<WaitLockObject> queue = new Vector<WaitLockObject>(entry.waiters());
+		boolean behind = (conversion == null);
+		for (WaitLockObject waitLockObject : queue) {
+			if (waitLockObject == conversion) {
+				behind = true;
+				continue;
+			}
+			if (!behind || !waitLockObject.isWaiting() || compatible(lockType, waitLockObject.getLockType())) {
+				continue;
+			}
+			switch (this.deadlockPolicy) {
+				case DETECTION:
+					this.waitsForGraph.addEdge(waitLockObject.getXId(), xid);
+					break;
+				case WAIT_DIE:
+					if (waitLockObject.getXId() > xid) {
+						this.metrics.deadlock();
+						completed = failRequest(entry, waitLockObject, "Wait-die: transaction " + xid + " is older", completed);
 					}
-					// (2) transaction already had a WRITE lock
-					else if (l_dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_WRITE)
-					{
-						// Since transaction already has a write lock
-						//  it is requesting a write lock again
-						// it is redundant.
-						throw new RedundantLockRequestException(dataLockObject.getXId(), "redundant WRITE lock request");
+					break;
+				case WOUND_WAIT:
+					if (waitLockObject.getXId() < xid && !this.waitsForGraph.isVictim(xid)) {
+						this.metrics.deadlock();
+						this.waitsForGraph.wound(xid);
+						// A queued conversion fails as soon as it is checked for deadlocks, a granted one
+						// leaves the converter running and it is aborted like any wounded transaction
+						if (conversion == null) {
+							completed = deferVictim(completed, xid);
+						}
 					}
-					/*winnie*******************************************************************/
-				}
-			} 
-			else if (dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_READ)
-			{
-				if (l_dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_WRITE)
-				{
-					// Transaction is requesting a READ lock and some other transaction
-					// already has a WRITE lock on it ==> conflict
-					Trace.info("LM::lockConflict(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ") Want READ, someone has WRITE");
-					return true;
+					break;
+				default:
+					break;
+			}
+		}
+		return completed;
+	}
+
+
+	// Compare the age of the requester with the holders it conflicts with. Under wait-die the requester
+	// aborts if any of them is older, under wound-wait it aborts every younger one and then waits. Either
+	// way a transaction only ever waits for older (wait-die) or younger (wound-wait) ones, so no cycle
+	// can form and no global graph has to be searched.
+	private Vector<WaitLockObject> preventDeadlock(LockEntry entry, WaitLockObject waitLockObject, Vector<WaitLockObject> completed)
+	{
+		int xid = waitLockObject.getXId();
+		Vector<Integer> holders = blockers(entry, waitLockObject);
+
+		if (this.deadlockPolicy == DeadlockPolicy.WAIT_DIE) {
+			for (Integer holder : holders) {
+				if (holder < xid) {
+					Trace.info("LM::waitDie(" + xid + ", " + waitLockObject.getDataName() + ") dies, older transaction " + holder + " holds the lock");
+					this.metrics.deadlock();
+					return failRequest(entry, waitLockObject, "Wait-die: transaction " + holder + " is older", completed);
 				}
 			}
-		       	else if (dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_WRITE)
-			{
-				// Transaction is requesting a WRITE lock and some other transaction has either
-				// a READ or a WRITE lock on it ==> conflict
-				Trace.info("LM::lockConflict(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ") Want WRITE, someone has READ or WRITE");
+			return completed;
+		}
+
+		// Wound-wait: the requester may have been wounded already, by an older request queued behind
+		// its conversion
+		if (this.waitsForGraph.isVictim(xid)) {
+			return failRequest(entry, waitLockObject, "Wounded by an older transaction", completed);
+		}
+		for (Integer holder : holders) {
+			if (holder > xid && !this.waitsForGraph.isVictim(holder)) {
+				Trace.info("LM::woundWait(" + xid + ", " + waitLockObject.getDataName() + ") wounds younger transaction " + holder);
+				this.metrics.deadlock();
+				this.waitsForGraph.wound(holder);
+				completed = deferVictim(completed, holder);
+			}
+		}
+		return completed;
+	}
+
+
+	// Whether a lock of the first type held by one transaction lets another transaction take a lock of the second type
+	//
+	//             IS    IX    S     SIX   U     E     X
+	//      IS     yes   yes   yes   yes   yes   yes   no
+	//      IX     yes   yes   no    no    no    no    no
+	//      S      yes   no    yes   no    yes   no    no
+	//      SIX    yes   no    no    no    no    no    no
+	//      U      yes   no    yes   no    no    no    no
+	//      E      yes   no    no    no    no    yes   no
+	//      X      no    no    no    no    no    no    no
+	static boolean compatible(TransactionLockObject.LockType held, TransactionLockObject.LockType requested)
+	{
+		switch (held) {
+			case LOCK_INTENTION_READ:
+				return requested != TransactionLockObject.LockType.LOCK_WRITE;
+			case LOCK_INTENTION_WRITE:
+				return requested == TransactionLockObject.LockType.LOCK_INTENTION_READ || requested == TransactionLockObject.LockType.LOCK_INTENTION_WRITE;
+			case LOCK_READ:
+				return requested == TransactionLockObject.LockType.LOCK_INTENTION_READ || requested == TransactionLockObject.LockType.LOCK_READ ||
+					requested == TransactionLockObject.LockType.LOCK_UPDATE;
+			case LOCK_UPDATE:
+				return requested == TransactionLockObject.LockType.LOCK_INTENTION_READ || requested == TransactionLockObject.LockType.LOCK_READ;
+			case LOCK_READ_INTENTION_WRITE:
+				return requested == TransactionLockObject.LockType.LOCK_INTENTION_READ;
+			case LOCK_ESCROW:
+				return requested == TransactionLockObject.LockType.LOCK_INTENTION_READ || requested == TransactionLockObject.LockType.LOCK_ESCROW;
+			default:
+				return false;
+		}
+	}
+
+
+	// Whether no lock is compatible with a lock of this type
+	static boolean exclusive(TransactionLockObject.LockType lockType)
+	{
+		return lockType == TransactionLockObject.LockType.LOCK_WRITE;
+	}
+
+
+	// The weakest mode that grants everything both modes grant: S and IX make SIX, U and anything
+	// stronger than S make X, E and anything but IS make X, otherwise the stronger of the two
+	static TransactionLockObject.LockType join(TransactionLockObject.LockType held, TransactionLockObject.LockType requested)
+	{
+		if (held == requested) {
+			return held;
+		}
+		if (held == TransactionLockObject.LockType.LOCK_WRITE || requested == TransactionLockObject.LockType.LOCK_WRITE) {
+			return TransactionLockObject.LockType.LOCK_WRITE;
+		}
+		if (held == TransactionLockObject.LockType.LOCK_INTENTION_READ) {
+			return requested;
+		}
+		if (requested == TransactionLockObject.LockType.LOCK_INTENTION_READ) {
+			return held;
+		}
+		if (held == TransactionLockObject.LockType.LOCK_ESCROW || requested == TransactionLockObject.LockType.LOCK_ESCROW) {
+			return TransactionLockObject.LockType.LOCK_WRITE;
+		}
+		if (held == TransactionLockObject.LockType.LOCK_UPDATE || requested == TransactionLockObject.LockType.LOCK_UPDATE) {
+			if (held == TransactionLockObject.LockType.LOCK_READ || requested == TransactionLockObject.LockType.LOCK_READ) {
+				return TransactionLockObject.LockType.LOCK_UPDATE;
+			}
+			return TransactionLockObject.LockType.LOCK_WRITE;
+		}
+		return TransactionLockObject.LockType.LOCK_READ_INTENTION_WRITE;
+	}
+
+
+	// Whether holding a lock of the first type already grants a lock of the second type
+	static boolean covers(TransactionLockObject.LockType held, TransactionLockObject.LockType requested)
+	{
+		return join(held, requested) == held;
+	}
+
+
+	// The mode to lock the table of a record with before locking the record itself
+	static TransactionLockObject.LockType intention(TransactionLockObject.LockType lockType)
+	{
+		if (lockType == TransactionLockObject.LockType.LOCK_READ || lockType == TransactionLockObject.LockType.LOCK_INTENTION_READ) {
+			return TransactionLockObject.LockType.LOCK_INTENTION_READ;
+		}
+		return TransactionLockObject.LockType.LOCK_INTENTION_WRITE;
+	}
+
+
+	// The index in TABLES of the table of a record key, or -1 if the data is a table itself or belongs
+	// to no table. The key is matched in place so that locking a record allocates nothing.
+	static int tableIndex(String data)
+	{
+		int separator = data.indexOf('-');
+		if (separator <= 0) {
+			return -1;
+		}
+		for (int i = 0; i < TABLES.length; i++) {
+			if (TABLES[i].length() == separator && data.startsWith(TABLES[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	// The index in TABLES of the table named by the data, or -1 if it is not a table
+	static int tableNameIndex(String data)
+	{
+		for (int i = 0; i < TABLES.length; i++) {
+			if (TABLES[i].equals(data)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	// Whether another transaction holds a lock on the data item that is incompatible with the request
+	private boolean hasConflict(LockEntry entry, int xid, TransactionLockObject.LockType lockType)
+	{
+		for (int i = 0; i < entry.holderCount(); i++) {
+			if (entry.holderXId(i) != xid && !compatible(entry.holderType(i), lockType)) {
 				return true;
 			}
 		}
+		return false;
+	}
+
 
-		
-		/*winnie***********************************************************************/
-		// set bit 0 to true 
-		// meaning: locking type conversion from read to write
-		if (readWrite==true) {
-			bitset.set(0);
+	// Whether one of the first requests queued for the data item is incompatible with the request
+	private boolean conflictsAhead(LockEntry entry, int count, TransactionLockObject.LockType lockType)
+	{
+		for (int i = 0; i < count; i++) {
+			if (!compatible(entry.waiters().elementAt(i).getLockType(), lockType)) {
+				return true;
+			}
 		}
-		/*winnie***********************************************************************/
-		// No conflicting lock found, return false
 		return false;
+	}
 
+
+	// The transactions holding a lock on the data item that is incompatible with the request
+	private Vector<Integer> conflictingHolders(LockEntry entry, int xid, TransactionLockObject.LockType lockType)
+	{
+		Vector<Integer> conflicting = new Vector<Integer>();
+		for (int i = 0; i < entry.holderCount(); i++) {
+			if (entry.holderXId(i) != xid && !compatible(entry.holderType(i), lockType)) {
+				conflicting.addElement(entry.holderXId(i));
+			}
+		}
+		return conflicting;
 	}
 
-	private void WaitLock(DataLockObject dataLockObject) throws DeadlockException
+
+	// The transactions a queued request waits for: the incompatible holders, and the incompatible
+	// requests queued ahead of it since the queue is served in order
+	private Vector<Integer> blockers(LockEntry entry, WaitLockObject waitLockObject)
 	{
-		Trace.info("LM::waitLock(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ", " + dataLockObject.getLockType() + ") called");
+		Vector<Integer> blockers = conflictingHolders(entry, waitLockObject.getXId(), waitLockObject.getLockType());
+		for (WaitLockObject ahead : entry.waiters()) {
+			if (ahead == waitLockObject) {
+				break;
+			}
+			if (ahead.getXId() != waitLockObject.getXId() && !compatible(ahead.getLockType(), waitLockObject.getLockType())) {
+				blockers.addElement(ahead.getXId());
+			}
+		}
+		return blockers;
+	}
 
-		// Check timestamp or add a new one.
-		//
-		// Will always add new timestamp for each new lock request since
-		// the timeObject is deleted each time the transaction succeeds in
-		// getting a lock (see Lock())
-		TimeObject timeObject = new TimeObject(dataLockObject.getXId());
-		TimeObject timestamp = null;
-		long timeBlocked = 0;
-		Thread thisThread = Thread.currentThread();
-		WaitLockObject waitLockObject = new WaitLockObject(dataLockObject.getXId(), dataLockObject.getDataName(), dataLockObject.getLockType(), thisThread);
 
-		synchronized (this.stampTable) {
-			Vector vect = this.stampTable.elements(timeObject);
-			if (vect.size() == 0)
-			{
-				// add the time stamp for this lock request to stampTable
-				this.stampTable.add(timeObject);
-				timestamp = timeObject;
+	// The edges of a queued request in the waits-for graph. Only reachability matters for finding
+	// cycles, so instead of every incompatible request ahead of it, the scan stops at the first
+	// exclusive one, which waits for everything before it and for the holders. This keeps the graph
+	// linear in the length of the queue.
+	private Vector<Integer> waitsFor(LockEntry entry, WaitLockObject waitLockObject)
+	{
+		Vector<Integer> waitsFor = new Vector<Integer>();
+		Vector<WaitLockObject> queue = entry.waiters();
+		int position = queue.size();
+		for (int i = 0; i < queue.size(); i++) {
+			if (queue.elementAt(i) == waitLockObject) {
+				position = i;
+				break;
 			}
-			else if (vect.size() == 1)
-			{
-				// Lock operation could have timed out; check for deadlock
-				TimeObject prevStamp = (TimeObject)vect.firstElement();
-				timestamp = prevStamp;
-				timeBlocked = timeObject.getTime() - prevStamp.getTime();
-				if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT)
-				{
-					// The transaction has been waiting for a period greater than the timeout period
-					cleanupDeadlock(prevStamp, waitLockObject);
+		}
+		for (int i = position - 1; i >= 0; i--) {
+			WaitLockObject ahead = queue.elementAt(i);
+			if (ahead.getXId() != waitLockObject.getXId() && !compatible(ahead.getLockType(), waitLockObject.getLockType())) {
+				waitsFor.addElement(ahead.getXId());
+				if (exclusive(ahead.getLockType())) {
+					return waitsFor;
 				}
 			}
-			// Shouldn't be more than one time stamp per transaction because the transaction can be blocked
-			// on just one lock request
-		} 
-
-		// Suspend thread and wait until notified
-		synchronized (this.waitTable) {
-			if (!this.waitTable.contains(waitLockObject))
-		       	{
-				// Register this transaction in the waitTable if it is not already there 
-				this.waitTable.add(waitLockObject);
-			}
-			// Else lock manager already knows the transaction is waiting
-		}
-
-		synchronized (thisThread) {
-			try {
-				thisThread.wait(LockManager.DEADLOCK_TIMEOUT - timeBlocked);
-				TimeObject currTime = new TimeObject(dataLockObject.getXId());
-				timeBlocked = currTime.getTime() - timestamp.getTime();
-				// Check if the transaction has been waiting for a period greater than the timeout period
-				if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-					cleanupDeadlock(timestamp, waitLockObject);
-				} else {
-					return;
+		}
+		waitsFor.addAll(conflictingHolders(entry, waitLockObject.getXId(), waitLockObject.getLockType()));
+		return waitsFor;
+	}
+
+
+	// The request left the queue, it no longer needs to be cancelled if its transaction aborts
+	private void clearPending(WaitLockObject waitLockObject)
+	{
+		TransactionLocks transactionLocks = this.lockTable.findTransaction(waitLockObject.getXId());
+		if (transactionLocks != null) {
+			transactionLocks.clearPending(waitLockObject);
+		}
+	}
+
+
+	// Take a queued request out of the queue and the waits-for graph, and let the requests behind it
+	// go if they can. Its future fails once the caller released the monitor of the stripe.
+	private Vector<WaitLockObject> failRequest(LockEntry entry, WaitLockObject waitLockObject, String msg, Vector<WaitLockObject> completed)
+	{
+		Trace.info("LM::deadlock(" + waitLockObject.getXId() + ", " + waitLockObject.getDataName() + ", " + waitLockObject.getLockType() + ") called");
+		entry.dequeue(waitLockObject);
+		clearPending(waitLockObject);
+		this.metrics.waited(System.nanoTime() - waitLockObject.getQueuedTime());
+		waitLockObject.setFailure(msg);
+		this.waitsForGraph.removeWaiter(waitLockObject.getXId());
+		completed = defer(completed, waitLockObject);
+
+		completed = GrantWaiters(entry, completed);
+
+		if (this.deadlockPolicy == DeadlockPolicy.DETECTION) {
+			// The requests behind it may only have reached the transactions ahead through it. Their new
+			// edges can close a cycle that went unnoticed while the request was on its way out.
+			for (WaitLockObject behind : new Vector<WaitLockObject>(entry.waiters())) {
+				if (behind.isWaiting() && this.waitsForGraph.hasEdge(behind.getXId(), waitLockObject.getXId())) {
+					completed = detectDeadlock(entry, behind, completed);
 				}
 			}
-			catch (InterruptedException e) {
-				System.out.println("Thread interrupted");
+		}
+		return completed;
+	}
+
+
+	// Fail the request unless it has been granted or failed already, and tell whether it was failed.
+	// Used for requests queued on other stripes than the one whose monitor the caller held, and for
+	// timeouts.
+	private boolean cancelRequest(WaitLockObject waitLockObject, String msg)
+	{
+		Vector<WaitLockObject> completed = null;
+		LockTable.Stripe stripe = this.lockTable.stripeFor(waitLockObject.getDataName());
+		synchronized (stripe) {
+			if (waitLockObject.isWaiting()) {
+				LockEntry entry = stripe.entry(waitLockObject.getDataName());
+				completed = failRequest(entry, waitLockObject, msg, completed);
+				stripe.prune(entry);
+			}
+		}
+		complete(completed);
+		return completed != null;
+	}
+
+
+	// Queue the current request of a deadlock victim to be cancelled
+	private Vector<WaitLockObject> deferVictim(Vector<WaitLockObject> completed, int victim)
+	{
+		TransactionLocks transactionLocks = this.lockTable.findTransaction(victim);
+		WaitLockObject victimRequest = (transactionLocks == null) ? null : transactionLocks.getPending(victim);
+		if (victimRequest == null) {
+			// A wounded transaction that is running is aborted by the handler, or finds out on its next
+			// lock request
+			WoundHandler handler = this.woundHandler;
+			if (handler != null) {
+				handler.wounded(victim);
 			}
+			return completed;
 		}
+		return defer(completed, victimRequest);
 	}
 
 
-	// CleanupDeadlock cleans up stampTable and waitTable, and throws DeadlockException
-	private void cleanupDeadlock(TimeObject timeObject, WaitLockObject waitLockObject) throws DeadlockException
+	// The list is only allocated once a request actually has to be completed
+	private static Vector<WaitLockObject> defer(Vector<WaitLockObject> completed, WaitLockObject waitLockObject)
 	{
-		Trace.info("LM::deadlock(" + waitLockObject.getXId() + ", " + waitLockObject.getDataName() + ", " + waitLockObject.getLockType() + ") called");
-		synchronized (this.stampTable) {
-			synchronized (this.waitTable) {
-				this.stampTable.remove(timeObject);
-				this.waitTable.remove(waitLockObject);
+		if (completed == null) {
+			completed = new Vector<WaitLockObject>();
+		}
+		completed.addElement(waitLockObject);
+		return completed;
+	}
+
+
+	// Complete the futures of the requests granted or failed while a monitor was held, and cancel the
+	// requests of the deadlock victims. Must be called without holding any monitor, since completing
+	// a future runs the actions that depend on it.
+	private void complete(Vector<WaitLockObject> completed)
+	{
+		if (completed == null) {
+			return;
+		}
+		for (WaitLockObject waitLockObject : completed) {
+			if (waitLockObject.isWaiting()) {
+				String msg = (this.deadlockPolicy == DeadlockPolicy.WOUND_WAIT) ? "Wounded by an older transaction" : "Chosen as the victim of a deadlock";
+				cancelRequest(waitLockObject, msg);
+			} else {
+				waitLockObject.complete();
 			}
 		}
-		throw new DeadlockException(waitLockObject.getXId(), "Sleep timeout: deadlocked");
+	}
+
+
+	private static ScheduledThreadPoolExecutor createTimer()
+	{
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "LockManager timeouts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Most requests are granted long before their timeout
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
 	}
 }
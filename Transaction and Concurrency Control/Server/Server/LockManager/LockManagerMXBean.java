@@ -0,0 +1,49 @@
+package Server.LockManager;
+
+import java.util.Map;
+
+/* Management interface of the Lock Manager
+ *
+ * Registered with the platform MBean server by LockManager.registerMBean, so
+ * that the counters can be watched with jconsole or any other JMX client. */
+
+public interface LockManagerMXBean
+{
+	// Locks granted, right away or after waiting, including conversions
+	public long getAcquireCount();
+
+	// Granted locks that converted a lock the transaction already held
+	public long getConversionCount();
+
+	// Requests for a record lock the transaction already held, or that a lock on its table covered
+	public long getRedundantCount();
+
+	// Requests that had to wait
+	public long getQueuedCount();
+
+	// Requests refused by the deadlock policy: cycle victims, wait-die deaths and wounds
+	public long getDeadlockCount();
+
+	// Requests that waited out the timeout
+	public long getTimeoutCount();
+
+	// Record locks replaced by a lock on their table
+	public long getEscalationCount();
+
+	// Time spent by the queued requests until they were granted or refused
+	public long getTotalWaitMillis();
+
+	// Upper bounds of the buckets of the wait time histogram
+	public String[] getWaitTimeBuckets();
+
+	public long[] getWaitTimeHistogram();
+
+	// Number of queued requests of every data item that has any
+	public Map<String, Integer> getQueueDepths();
+
+	// The data items that made the most requests wait recently, most contended first
+	public String[] getHotKeys();
+
+	// Holders and queue of every data item that is locked
+	public String dumpLockTable();
+}
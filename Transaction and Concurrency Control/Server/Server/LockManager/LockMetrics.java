@@ -0,0 +1,239 @@
+package Server.LockManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Counters of the Lock Manager
+ *
+ * The counters of the uncontended path are LongAdders, which do not allocate
+ * once they have seen the threads using them. Everything else is only
+ * recorded when a request has to wait.
+ *
+ * Contention per data item is counted over a sliding window made of the
+ * current and the previous period, so that the hot keys reflect the last one
+ * to two periods. */
+
+public class LockMetrics implements LockManagerMXBean
+{
+	private static final long WINDOW = 60000;
+	private static final int HOT_KEYS = 10;
+
+	// The last bucket holds every wait longer than the others
+	private static final long[] BUCKET_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+	private LockTable m_lockTable;
+
+	private LongAdder m_acquired = new LongAdder();
+	private LongAdder m_converted = new LongAdder();
+	private LongAdder m_redundant = new LongAdder();
+	private LongAdder m_queued = new LongAdder();
+	private LongAdder m_deadlocks = new LongAdder();
+	private LongAdder m_timeouts = new LongAdder();
+	private LongAdder m_escalations = new LongAdder();
+	private LongAdder m_waitNanos = new LongAdder();
+	private AtomicLongArray m_waits = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+
+	private volatile ConcurrentHashMap<String, AtomicLong> m_contention = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile ConcurrentHashMap<String, AtomicLong> m_previousContention = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile long m_windowStart = System.currentTimeMillis();
+
+	LockMetrics(LockTable lockTable)
+	{
+		m_lockTable = lockTable;
+	}
+
+	void granted(boolean conversion)
+	{
+		m_acquired.increment();
+		if (conversion) {
+			m_converted.increment();
+		}
+	}
+
+	void redundant()
+	{
+		m_redundant.increment();
+	}
+
+	void queued(String data)
+	{
+		m_queued.increment();
+		rotate();
+		AtomicLong count = m_contention.get(data);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = m_contention.putIfAbsent(data, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	// A queued request left the queue, granted or not
+	void waited(long nanos)
+	{
+		m_waitNanos.add(nanos);
+		long millis = nanos / 1000000;
+		int bucket = 0;
+		while (bucket < BUCKET_MILLIS.length && millis >= BUCKET_MILLIS[bucket]) {
+			bucket++;
+		}
+		m_waits.incrementAndGet(bucket);
+	}
+
+	void deadlock()
+	{
+		m_deadlocks.increment();
+	}
+
+	void timeout()
+	{
+		m_timeouts.increment();
+	}
+
+	void escalation()
+	{
+		m_escalations.increment();
+	}
+
+	// Start a new period once the current one is over, the one before it is dropped
+	private void rotate()
+	{
+		long now = System.currentTimeMillis();
+		if (now - m_windowStart < WINDOW) {
+			return;
+		}
+		synchronized (this) {
+			if (now - m_windowStart >= WINDOW) {
+				m_previousContention = m_contention;
+				m_contention = new ConcurrentHashMap<String, AtomicLong>();
+				m_windowStart = now;
+			}
+		}
+	}
+
+	public long getAcquireCount()
+	{
+		return m_acquired.sum();
+	}
+
+	public long getConversionCount()
+	{
+		return m_converted.sum();
+	}
+
+	public long getRedundantCount()
+	{
+		return m_redundant.sum();
+	}
+
+	public long getQueuedCount()
+	{
+		return m_queued.sum();
+	}
+
+	public long getDeadlockCount()
+	{
+		return m_deadlocks.sum();
+	}
+
+	public long getTimeoutCount()
+	{
+		return m_timeouts.sum();
+	}
+
+	public long getEscalationCount()
+	{
+		return m_escalations.sum();
+	}
+
+	public long getTotalWaitMillis()
+	{
+		return m_waitNanos.sum() / 1000000;
+	}
+
+	public String[] getWaitTimeBuckets()
+	{
+		String[] buckets = new String[BUCKET_MILLIS.length + 1];
+		for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+			buckets[i] = "<" + BUCKET_MILLIS[i] + "ms";
+		}
+		buckets[BUCKET_MILLIS.length] = ">=" + BUCKET_MILLIS[BUCKET_MILLIS.length - 1] + "ms";
+		return buckets;
+	}
+
+	public long[] getWaitTimeHistogram()
+	{
+		long[] histogram = new long[m_waits.length()];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = m_waits.get(i);
+		}
+		return histogram;
+	}
+
+	public Map<String, Integer> getQueueDepths()
+	{
+		return m_lockTable.queueDepths();
+	}
+
+	public String[] getHotKeys()
+	{
+		rotate();
+		final HashMap<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : m_previousContention.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, AtomicLong> entry : m_contention.entrySet()) {
+			Long count = counts.get(entry.getKey());
+			counts.put(entry.getKey(), entry.getValue().get() + (count == null ? 0 : count));
+		}
+
+		ArrayList<String> keys = new ArrayList<String>(counts.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			public int compare(String a, String b)
+			{
+				return Long.compare(counts.get(b), counts.get(a));
+			}
+		});
+
+		String[] hotKeys = new String[Math.min(HOT_KEYS, keys.size())];
+		for (int i = 0; i < hotKeys.length; i++) {
+			hotKeys[i] = keys.get(i) + "=" + counts.get(keys.get(i));
+		}
+		return hotKeys;
+	}
+
+	public String dumpLockTable()
+	{
+		return m_lockTable.dump();
+	}
+
+	public String toString()
+	{
+		String s = "--- BEGIN Lock Metrics ---\n";
+		s += "acquired=" + getAcquireCount() + " converted=" + getConversionCount() + " redundant=" + getRedundantCount() +
+			" queued=" + getQueuedCount() + " escalated=" + getEscalationCount() + "\n";
+		s += "deadlocks=" + getDeadlockCount() + " timeouts=" + getTimeoutCount() + " waited=" + getTotalWaitMillis() + "ms\n";
+
+		String[] buckets = getWaitTimeBuckets();
+		long[] histogram = getWaitTimeHistogram();
+		s += "wait times:";
+		for (int i = 0; i < buckets.length; i++) {
+			s += " " + buckets[i] + "=" + histogram[i];
+		}
+		s += "\nhot keys:";
+		for (String hotKey : getHotKeys()) {
+			s += " " + hotKey;
+		}
+		s += "\n--- END Lock Metrics ---";
+		return s;
+	}
+}
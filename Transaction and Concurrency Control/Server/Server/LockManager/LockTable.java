@@ -0,0 +1,323 @@
+package Server.LockManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/* Striped lock table for the Lock Manager
+ *
+ * The lock entries of the data items are spread over independently locked
+ * stripes, so that requests on unrelated data items never contend on the same
+ * monitor. The locks held by each transaction are kept apart from the entries,
+ * which lets UnlockAll find them without scanning the whole table.
+ *
+ * The waiters of a data item form a FIFO queue served from the head, with
+ * lock conversions placed ahead of the other requests.
+ *
+ * Entries are interned per key while the key is locked or waited for, and are
+ * dropped from their stripe as soon as it is neither, so that the table only
+ * grows with the items in use. Dropped entries and transaction records are
+ * recycled, so the uncontended lock and unlock paths do not allocate once the
+ * table is warm. */
+
+public class LockTable
+{
+	private static final int HASH_DEPTH = 8;
+	private static final int SEGMENT_COUNT = 16;
+	// Entries each stripe keeps aside for reuse
+	private static final int SPARE_ENTRIES = 4;
+
+	private Stripe[] m_stripes;
+	private int m_stripeMask;
+
+	// Locks held by each transaction, segmented on the xid
+	private TransactionSegment[] m_transactions;
+
+	LockTable(int p_stripes)
+	{
+		// Round up to a power of two so that the stripe can be picked with a mask
+		int stripes = 1;
+		while (stripes < p_stripes) {
+			stripes <<= 1;
+		}
+
+		m_stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			m_stripes[i] = new Stripe();
+		}
+		m_stripeMask = stripes - 1;
+
+		m_transactions = new TransactionSegment[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			m_transactions[i] = new TransactionSegment();
+		}
+	}
+
+	public int getSize()
+	{
+		return m_stripes.length;
+	}
+
+	// Every read or write of a stripe must be done while holding its monitor
+	Stripe stripeFor(String data)
+	{
+		int h = data.hashCode();
+		// Spread the high bits down, the low bits of String hashes are poorly distributed
+		h ^= (h >>> 16);
+		return m_stripes[h & m_stripeMask];
+	}
+
+	private TransactionSegment segmentFor(int xid)
+	{
+		return m_transactions[xid & (SEGMENT_COUNT - 1)];
+	}
+
+	// The record of the locks of the transaction, created on its first request
+	TransactionLocks transactionFor(int xid)
+	{
+		return segmentFor(xid).get(xid, true);
+	}
+
+	// The record of the locks of the transaction, or null if it has made no request
+	TransactionLocks findTransaction(int xid)
+	{
+		return segmentFor(xid).get(xid, false);
+	}
+
+	// Detach the record of the transaction, it is handed back with recycleTransaction once its
+	// locks have been released
+	TransactionLocks removeTransaction(int xid)
+	{
+		return segmentFor(xid).remove(xid);
+	}
+
+	void recycleTransaction(TransactionLocks transactionLocks)
+	{
+		segmentFor(transactionLocks.getXId()).recycle(transactionLocks);
+	}
+
+	int countTransactionLocks(int xid)
+	{
+		TransactionLocks transactionLocks = findTransaction(xid);
+		if (transactionLocks == null) {
+			return 0;
+		}
+		return transactionLocks.size();
+	}
+
+	public Vector<TransactionObject> allElements()
+	{
+		Vector<TransactionObject> contents = new Vector<TransactionObject>(1024);
+		for (Stripe stripe : m_stripes) {
+			synchronized (stripe) {
+				for (LockEntry entry : stripe.m_entries.values()) {
+					for (int i = 0; i < entry.holderCount(); i++) {
+						contents.addElement(new DataLockObject(entry.holderXId(i), entry.getDataName(), entry.holderType(i)));
+					}
+				}
+			}
+		}
+		return contents;
+	}
+
+	// Number of queued requests per data item, for the items that have any
+	Map<String, Integer> queueDepths()
+	{
+		TreeMap<String, Integer> depths = new TreeMap<String, Integer>();
+		for (Stripe stripe : m_stripes) {
+			synchronized (stripe) {
+				for (LockEntry entry : stripe.m_entries.values()) {
+					if (entry.hasWaiters()) {
+						depths.put(entry.getDataName(), entry.waiters().size());
+					}
+				}
+			}
+		}
+		return depths;
+	}
+
+	// The holders and the queue of every data item that is locked, one line per item sorted on the
+	// data name. Each stripe is dumped as it is when its turn comes, not all of them at once.
+	String dump()
+	{
+		TreeMap<String, String> lines = new TreeMap<String, String>();
+		for (Stripe stripe : m_stripes) {
+			synchronized (stripe) {
+				for (LockEntry entry : stripe.m_entries.values()) {
+					if (entry.holderCount() == 0 && !entry.hasWaiters()) {
+						continue;
+					}
+					StringBuilder line = new StringBuilder(entry.getDataName()).append("  holders:");
+					for (int i = 0; i < entry.holderCount(); i++) {
+						line.append(' ').append(entry.holderXId(i)).append(':').append(entry.holderType(i));
+					}
+					if (entry.hasWaiters()) {
+						line.append("  queue:");
+						for (WaitLockObject waitLockObject : entry.waiters()) {
+							line.append(' ').append(waitLockObject.getXId()).append(':').append(waitLockObject.getLockType());
+							if (waitLockObject.isConversion()) {
+								line.append("(conversion)");
+							}
+						}
+					}
+					lines.put(entry.getDataName(), line.toString());
+				}
+			}
+		}
+
+		StringBuilder dump = new StringBuilder("--- BEGIN Lock Table ---\n");
+		for (String line : lines.values()) {
+			dump.append(line).append('\n');
+		}
+		return dump.append("--- END Lock Table ---").toString();
+	}
+
+	static class Stripe
+	{
+		// Interned lock entries, keyed on the data name
+		private HashMap<String, LockEntry> m_entries = new HashMap<String, LockEntry>();
+		private LockEntry m_spare = null;
+		private int m_spareCount = 0;
+
+		// The entry of the data item, interned again if it was dropped
+		LockEntry entry(String data)
+		{
+			LockEntry entry = m_entries.get(data);
+			if (entry == null) {
+				entry = m_spare;
+				if (entry != null) {
+					m_spare = entry.m_next;
+					m_spareCount--;
+					entry.m_next = null;
+					entry.reset(data);
+				} else {
+					entry = new LockEntry(data);
+				}
+				m_entries.put(data, entry);
+			}
+			return entry;
+		}
+
+		// The entry of the data item, or null if nobody holds or waits for it
+		LockEntry find(String data)
+		{
+			return m_entries.get(data);
+		}
+
+		// Drop the entry once nobody holds or waits for it anymore. Only called once the caller no longer
+		// uses the entry.
+		void prune(LockEntry entry)
+		{
+			if (!entry.isUnused() || m_entries.get(entry.getDataName()) != entry) {
+				return;
+			}
+			m_entries.remove(entry.getDataName());
+			if (m_spareCount < SPARE_ENTRIES) {
+				entry.m_next = m_spare;
+				m_spare = entry;
+				m_spareCount++;
+			}
+		}
+	}
+
+	// Open addressing table from xid to record, so that looking a transaction up does not box its
+	// xid, with a free list of the records of finished transactions
+	static class TransactionSegment
+	{
+		private TransactionLocks[] m_slots = new TransactionLocks[HASH_DEPTH * 8];
+		private int m_size = 0;
+		private TransactionLocks m_free = null;
+
+		private static int slot(int xid, int mask)
+		{
+			int h = xid * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		synchronized TransactionLocks get(int xid, boolean create)
+		{
+			int mask = m_slots.length - 1;
+			int i = slot(xid, mask);
+			while (m_slots[i] != null) {
+				if (m_slots[i].getXId() == xid) {
+					return m_slots[i];
+				}
+				i = (i + 1) & mask;
+			}
+			if (!create) {
+				return null;
+			}
+
+			TransactionLocks transactionLocks = m_free;
+			if (transactionLocks != null) {
+				m_free = transactionLocks.m_next;
+				transactionLocks.m_next = null;
+			} else {
+				transactionLocks = new TransactionLocks();
+			}
+			transactionLocks.reset(xid);
+			m_slots[i] = transactionLocks;
+			if (++m_size * 2 > m_slots.length) {
+				resize();
+			}
+			return transactionLocks;
+		}
+
+		synchronized TransactionLocks remove(int xid)
+		{
+			int mask = m_slots.length - 1;
+			int i = slot(xid, mask);
+			while (m_slots[i] != null && m_slots[i].getXId() != xid) {
+				i = (i + 1) & mask;
+			}
+			TransactionLocks transactionLocks = m_slots[i];
+			if (transactionLocks == null) {
+				return null;
+			}
+			m_slots[i] = null;
+			m_size--;
+
+			// Shift back the records of the same probe run that would no longer be found
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				TransactionLocks next = m_slots[j];
+				if (next == null) {
+					break;
+				}
+				int home = slot(next.getXId(), mask);
+				boolean reachable = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+				if (!reachable) {
+					m_slots[i] = next;
+					m_slots[j] = null;
+					i = j;
+				}
+			}
+			return transactionLocks;
+		}
+
+		synchronized void recycle(TransactionLocks transactionLocks)
+		{
+			transactionLocks.clear();
+			transactionLocks.m_next = m_free;
+			m_free = transactionLocks;
+		}
+
+		private void resize()
+		{
+			TransactionLocks[] slots = m_slots;
+			m_slots = new TransactionLocks[slots.length * 2];
+			int mask = m_slots.length - 1;
+			for (TransactionLocks transactionLocks : slots) {
+				if (transactionLocks != null) {
+					int i = slot(transactionLocks.getXId(), mask);
+					while (m_slots[i] != null) {
+						i = (i + 1) & mask;
+					}
+					m_slots[i] = transactionLocks;
+				}
+			}
+		}
+	}
+}
@@ -2,9 +2,20 @@ package Server.LockManager;
 
 public class TransactionLockObject extends TransactionObject
 {
+	// LOCK_READ and LOCK_WRITE are taken on records and on whole tables. The intention modes are only
+	// taken on tables, to announce read (IS) or write (IX) locks on their records, and a table read
+	// lock combined with record write locks (SIX). LOCK_UPDATE is taken on records that are read now
+	// and may be written later: it lets readers in but no other updater, so that two transactions
+	// never both wait to upgrade the same record to LOCK_WRITE. LOCK_ESCROW is taken on records to
+	// reserve from their available count: reservations commute, so it only excludes the other modes.
 	public enum LockType {
 		LOCK_READ,
 		LOCK_WRITE,
+		LOCK_INTENTION_READ,
+		LOCK_INTENTION_WRITE,
+		LOCK_READ_INTENTION_WRITE,
+		LOCK_UPDATE,
+		LOCK_ESCROW,
 		LOCK_UNKNOWN
 	};
 
@@ -24,7 +35,7 @@ public class TransactionLockObject extends TransactionObject
 	TransactionLockObject(int xid, String data, LockType lockType)
 	{
 		super(xid);
-		m_data = new String(data);
+		m_data = data;
 		m_lockType = lockType;
 	}
 
@@ -57,12 +68,12 @@ public class TransactionLockObject extends TransactionObject
 
 	public void setDataName(String data)
 	{
-		m_data = new String(data);
+		m_data = data;
 	}
 
 	public String getDataName()
 	{
-		return new String(m_data);
+		return m_data;
 	}
 
 	public void setLockType(LockType lockType)
@@ -0,0 +1,221 @@
+package Server.LockManager;
+
+import java.util.Vector;
+
+/* Locks held by a transaction
+ *
+ * Records are reused once their transaction has released its locks, so that a
+ * transaction which stays within the capacity of a recycled record does not
+ * allocate anything to track its locks.
+ *
+ * A record is marked finished as soon as its transaction starts releasing
+ * its locks, and takes no lock or request from then on. A request that holds
+ * on to the record across a wait checks the generation it started with, which
+ * changes each time the record is handed to a transaction. The methods that
+ * change the record take that generation and check it under the monitor of
+ * the record, so that a request of a finished transaction never changes the
+ * record of the transaction it was recycled for. */
+
+class TransactionLocks
+{
+	private static final int LOCKS = 8;
+
+	private int m_xid = 0;
+	private LockEntry[] m_entries = new LockEntry[LOCKS];
+	private int m_count = 0;
+
+	// Per table, indexed like LockManager.TABLES: the number of record locks, the mode of the table
+	// lock, and the record count at which escalating to a table lock is tried next
+	private int[] m_records = new int[LockManager.TABLES.length];
+	private TransactionLockObject.LockType[] m_tables = new TransactionLockObject.LockType[LockManager.TABLES.length];
+	private int[] m_escalateAt = new int[LockManager.TABLES.length];
+
+	// The request the transaction is blocked on, so that it can be cancelled on abort
+	private volatile WaitLockObject m_pending = null;
+
+	private int m_generation = 0;
+	private boolean m_finished = false;
+
+	// Next free record while the record is not in use
+	TransactionLocks m_next = null;
+
+	int getXId()
+	{
+		return m_xid;
+	}
+
+	synchronized void reset(int xid)
+	{
+		m_xid = xid;
+		m_generation++;
+		m_finished = false;
+	}
+
+	synchronized int generation()
+	{
+		return m_generation;
+	}
+
+	// The transaction is releasing its locks, it takes no more
+	synchronized void finish()
+	{
+		m_finished = true;
+	}
+
+	// Whether the record still belongs to the transaction it was handed to in that generation, and
+	// the transaction has not finished
+	synchronized boolean isLive(int generation)
+	{
+		return !m_finished && m_generation == generation;
+	}
+
+	// Returns false if the transaction has finished or the record has been recycled since the generation,
+	// the lock must not be granted then
+	synchronized boolean add(LockEntry entry, int generation)
+	{
+		if (!isLive(generation)) {
+			return false;
+		}
+		if (m_count == m_entries.length) {
+			LockEntry[] entries = new LockEntry[m_count * 2];
+			System.arraycopy(m_entries, 0, entries, 0, m_count);
+			m_entries = entries;
+		}
+		m_entries[m_count++] = entry;
+		if (entry.recordOf() >= 0) {
+			m_records[entry.recordOf()]++;
+		}
+		return true;
+	}
+
+	// Forget a single lock that has been released on its own
+	synchronized void remove(LockEntry entry)
+	{
+		for (int i = 0; i < m_count; i++) {
+			if (m_entries[i] == entry) {
+				m_entries[i] = m_entries[--m_count];
+				m_entries[m_count] = null;
+				if (entry.recordOf() >= 0) {
+					m_records[entry.recordOf()]--;
+				}
+				return;
+			}
+		}
+	}
+
+	synchronized int size()
+	{
+		return m_count;
+	}
+
+	synchronized LockEntry entryAt(int index)
+	{
+		return m_entries[index];
+	}
+
+	// Forget every lock once they have been released, the entries themselves stay interned
+	synchronized void clear()
+	{
+		for (int i = 0; i < m_count; i++) {
+			m_entries[i] = null;
+		}
+		m_count = 0;
+		for (int i = 0; i < m_tables.length; i++) {
+			m_records[i] = 0;
+			m_tables[i] = null;
+			m_escalateAt[i] = 0;
+		}
+		m_pending = null;
+		m_xid = 0;
+	}
+
+	synchronized int recordCount(int table)
+	{
+		return m_records[table];
+	}
+
+	// The mode the transaction holds the table in, or null if it has not locked it
+	synchronized TransactionLockObject.LockType tableLock(int table)
+	{
+		return m_tables[table];
+	}
+
+	// Returns false, changing nothing, like add
+	synchronized boolean setTableLock(int table, TransactionLockObject.LockType lockType, int generation)
+	{
+		if (!isLive(generation)) {
+			return false;
+		}
+		m_tables[table] = lockType;
+		return true;
+	}
+
+	// Whether the transaction holds enough record locks in the table to try escalating
+	synchronized boolean escalationDue(int table, int threshold)
+	{
+		return m_records[table] > threshold && m_records[table] >= m_escalateAt[table];
+	}
+
+	// Escalating would have conflicted, try again once as many record locks have been taken
+	synchronized void postponeEscalation(int table, int threshold)
+	{
+		m_escalateAt[table] = m_records[table] + threshold;
+	}
+
+	// Forget the record locks of the table once it has been escalated and return them, so that the
+	// caller releases them from their entries
+	synchronized Vector<LockEntry> removeRecords(int table, int generation)
+	{
+		if (!isLive(generation)) {
+			return new Vector<LockEntry>();
+		}
+		Vector<LockEntry> records = new Vector<LockEntry>(m_records[table]);
+		int kept = 0;
+		for (int i = 0; i < m_count; i++) {
+			if (m_entries[i].recordOf() == table) {
+				records.addElement(m_entries[i]);
+			} else {
+				m_entries[kept++] = m_entries[i];
+			}
+		}
+		for (int i = kept; i < m_count; i++) {
+			m_entries[i] = null;
+		}
+		m_count = kept;
+		m_records[table] = 0;
+		return records;
+	}
+
+	// The request the transaction is blocked on, or null if there is none or the record has been
+	// recycled for another transaction since it was looked up
+	synchronized WaitLockObject getPending(int xid)
+	{
+		return (m_xid == xid) ? m_pending : null;
+	}
+
+	// Returns false if the transaction has finished or the record has been recycled since the generation,
+	// the request must not be queued then
+	synchronized boolean setPending(WaitLockObject waitLockObject, int generation)
+	{
+		if (!isLive(generation)) {
+			return false;
+		}
+		m_pending = waitLockObject;
+		return true;
+	}
+
+	// Forget the request once it left the queue, unless the transaction has queued another one since
+	synchronized void clearPending(WaitLockObject waitLockObject)
+	{
+		if (m_pending == waitLockObject) {
+			m_pending = null;
+		}
+	}
+
+	synchronized WaitLockObject takePending()
+	{
+		WaitLockObject pending = m_pending;
+		m_pending = null;
+		return pending;
+	}
+}
@@ -1,8 +1,26 @@
 package Server.LockManager;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
 public class WaitLockObject extends DataLockObject
 {
-	protected Thread m_thread = null;
+	// Completed once the request is granted or failed
+	protected CompletableFuture<Boolean> m_future = new CompletableFuture<Boolean>();
+	protected ScheduledFuture<?> m_timeout = null;
+
+	// Set under the monitor of the stripe, read without it when the request is completed
+	protected volatile boolean m_granted = false;
+	protected volatile String m_failure = null;
+	protected boolean m_conversion = false;
+
+	// When the request was queued, from System.nanoTime
+	protected long m_queued = System.nanoTime();
+
+	// The record of the locks of the transaction and its generation when the request was queued, the
+	// lock is granted through them
+	protected TransactionLocks m_owner = null;
+	protected int m_generation = 0;
 
 	// The data members inherited are 
 	// TransactionObject:: protected int m_xid;
@@ -12,23 +30,91 @@ public class WaitLockObject extends DataLockObject
 	WaitLockObject()
 	{
 		super();
-		m_thread = null;
 	}
 
 	WaitLockObject(int xid, String data, LockType lockType)
 	{
 		super(xid, data, lockType);
-		m_thread = null;
 	}
 
-	WaitLockObject(int xid, String data, LockType lockType, Thread thread)
+	public CompletableFuture<Boolean> getFuture()
 	{
-		super(xid, data, lockType);
-		m_thread = thread;
+		return m_future;
+	}
+
+	void setTimeout(ScheduledFuture<?> timeout)
+	{
+		m_timeout = timeout;
+	}
+
+	public boolean isGranted()
+	{
+		return m_granted;
+	}
+
+	void setGranted()
+	{
+		m_granted = true;
+	}
+
+	// Why the request was refused, or null
+	public String getFailure()
+	{
+		return m_failure;
+	}
+
+	void setOwner(TransactionLocks owner, int generation)
+	{
+		m_owner = owner;
+		m_generation = generation;
+	}
+
+	TransactionLocks getOwner()
+	{
+		return m_owner;
+	}
+
+	int getGeneration()
+	{
+		return m_generation;
+	}
+
+	void setFailure(String failure)
+	{
+		m_failure = failure;
+	}
+
+	// Still queued, neither granted nor failed
+	public boolean isWaiting()
+	{
+		return !m_granted && m_failure == null;
+	}
+
+	public long getQueuedTime()
+	{
+		return m_queued;
+	}
+
+	public boolean isConversion()
+	{
+		return m_conversion;
+	}
+
+	void setConversion(boolean conversion)
+	{
+		m_conversion = conversion;
 	}
 
-	public Thread getThread()
+	// Hand the outcome of the request over to whoever waits on the future
+	void complete()
 	{
-		return m_thread;
+		if (m_timeout != null) {
+			m_timeout.cancel(false);
+		}
+		if (m_granted) {
+			m_future.complete(true);
+		} else {
+			m_future.completeExceptionally(new DeadlockException(m_xid, m_failure));
+		}
 	}
 }
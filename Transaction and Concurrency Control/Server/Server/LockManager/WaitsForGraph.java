@@ -0,0 +1,147 @@
+package Server.LockManager;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+/* Waits-for graph for the Lock Manager
+ *
+ * A transaction that is blocked reaches every transaction holding a lock it is
+ * blocked on, or queued ahead of it with an incompatible request, though not
+ * necessarily through a direct edge. The edges of a waiter are set when it
+ * blocks, and a cycle through the waiter is searched for at that point, so a
+ * deadlock is found as soon as the request that closes it blocks. */
+
+public class WaitsForGraph
+{
+	private HashMap<Integer, HashSet<Integer>> m_edges = new HashMap<Integer, HashSet<Integer>>();
+	private HashSet<Integer> m_victims = new HashSet<Integer>();
+
+	// Size of m_victims, readable without the monitor
+	private volatile int m_victimCount = 0;
+
+	WaitsForGraph()
+	{
+		super();
+	}
+
+	// Replace the outgoing edges of the waiter
+	public synchronized void setWaits(int xid, Vector<Integer> holders)
+	{
+		HashSet<Integer> edges = new HashSet<Integer>(holders);
+		edges.remove(xid);
+		m_edges.put(xid, edges);
+	}
+
+	// Replace the outgoing edges of the waiter and return the cycle through it, or null if there is none
+	public synchronized Vector<Integer> addWaits(int xid, Vector<Integer> holders)
+	{
+		setWaits(xid, holders);
+		return cycleThrough(xid);
+	}
+
+	// The waiter may be part of several cycles, breaking one of them leaves the others in place
+	public synchronized Vector<Integer> cycleThrough(int xid)
+	{
+		Vector<Integer> path = new Vector<Integer>();
+		path.addElement(xid);
+		if (findCycle(xid, xid, path, new HashSet<Integer>())) {
+			return path;
+		}
+		return null;
+	}
+
+	// Depth-first search for a path from the current node back to the start
+	private boolean findCycle(int start, int current, Vector<Integer> path, HashSet<Integer> visited)
+	{
+		HashSet<Integer> edges = m_edges.get(current);
+		if (edges == null) {
+			return false;
+		}
+		for (Integer next : edges) {
+			if (next == start) {
+				return true;
+			}
+			if (visited.add(next)) {
+				path.addElement(next);
+				if (findCycle(start, next, path, visited)) {
+					return true;
+				}
+				path.removeElementAt(path.size() - 1);
+			}
+		}
+		return false;
+	}
+
+	// A waiter now also waits for a transaction whose conversion was queued ahead of it
+	public synchronized void addEdge(int xid, int holder)
+	{
+		if (xid == holder) {
+			return;
+		}
+		HashSet<Integer> edges = m_edges.get(xid);
+		if (edges == null) {
+			edges = new HashSet<Integer>();
+			m_edges.put(xid, edges);
+		}
+		edges.add(holder);
+	}
+
+	public synchronized boolean hasEdge(int xid, int holder)
+	{
+		HashSet<Integer> edges = m_edges.get(xid);
+		return edges != null && edges.contains(holder);
+	}
+
+	// Choose the victim of a cycle. Returns false if the victim has been granted its lock since the
+	// cycle was found, in which case the cycle is already broken. Otherwise the victim is about to
+	// give up its request, so it no longer waits for anyone.
+	public synchronized boolean markVictim(int xid)
+	{
+		if (!m_edges.containsKey(xid)) {
+			return false;
+		}
+		m_edges.get(xid).clear();
+		return true;
+	}
+
+	// Wound a transaction whether it is waiting or running, a running one finds out on its next
+	// lock request
+	public synchronized void wound(int xid)
+	{
+		m_victims.add(xid);
+		m_victimCount = m_victims.size();
+	}
+
+	// Checked on every lock request, while there are no victims it neither blocks nor boxes the xid
+	public boolean isVictim(int xid)
+	{
+		if (m_victimCount == 0) {
+			return false;
+		}
+		synchronized (this) {
+			return m_victims.contains(xid);
+		}
+	}
+
+	// The transaction stopped waiting, it stays wounded until it releases its locks
+	public synchronized void removeWaiter(int xid)
+	{
+		m_edges.remove(xid);
+	}
+
+	// The transaction released all its locks, nobody can be waiting for it anymore
+	public synchronized void removeTransaction(int xid)
+	{
+		// Nothing to do for the common case of a transaction that never waited
+		if (m_edges.isEmpty() && m_victimCount == 0) {
+			return;
+		}
+		m_edges.remove(xid);
+		m_victims.remove(xid);
+		m_victimCount = m_victims.size();
+		for (HashSet<Integer> edges : m_edges.values()) {
+			edges.remove(xid);
+		}
+	}
+}
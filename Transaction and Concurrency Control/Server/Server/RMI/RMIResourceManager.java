@@ -21,6 +21,9 @@ public class RMIResourceManager extends ResourceManager
 	private static String s_serverName = "Server";
 	private static String s_rmiPrefix = "group_8_";
 	private static int PORT_NUMBER = 60108;
+	private static long s_flushInterval = WriteAheadLog.FLUSH_INTERVAL;
+	private static int s_batchSize = WriteAheadLog.BATCH_SIZE;
+	private static long s_checkpointInterval = PersistentStore.CHECKPOINT_INTERVAL;
 
 	public static void main(String args[])
 	{
@@ -28,6 +31,20 @@ public class RMIResourceManager extends ResourceManager
 		{
 			s_serverName = args[0];
 		}
+		// how long the log waits for more commits to share an fsync, and how many make it stop waiting
+		if (args.length > 1)
+		{
+			s_flushInterval = Long.valueOf(args[1]);
+		}
+		if (args.length > 2)
+		{
+			s_batchSize = Integer.valueOf(args[2]);
+		}
+		// how often the committed data is checkpointed, 0 only keeps the log
+		if (args.length > 3)
+		{
+			s_checkpointInterval = Long.valueOf(args[3]);
+		}
 			
 		// Create the RMI server entry
 		try {
@@ -42,13 +59,13 @@ public class RMIResourceManager extends ResourceManager
 			// new way to create the resource manager specifically by name
 			if ("Rooms".equals(s_serverName)){
 				PORT_NUMBER = 60108;
-				server = new RoomResourceManager(s_serverName);
+				server = new RoomResourceManager(s_serverName, s_flushInterval, s_batchSize, s_checkpointInterval);
 			} else if ("Cars".equals(s_serverName)){
 				PORT_NUMBER = 60308;
-				server = new CarResourceManager(s_serverName);
+				server = new CarResourceManager(s_serverName, s_flushInterval, s_batchSize, s_checkpointInterval);
 			} else if ("Flights".equals(s_serverName)){
 				PORT_NUMBER = 60208;
-				server = new FlightResourceManager(s_serverName);
+				server = new FlightResourceManager(s_serverName, s_flushInterval, s_batchSize, s_checkpointInterval);
 			}
 
 			assert server != null;
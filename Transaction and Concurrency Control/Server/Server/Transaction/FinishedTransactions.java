@@ -0,0 +1,67 @@
+package Server.Transaction;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The outcome of the finished transactions, kept for the WINDOW xids above a low watermark.
+// Every xid has a bit telling that it finished and one telling that it aborted. The watermark moves up
+// as higher xids finish and the outcomes below it are forgotten, so the memory used does not grow with
+// the number of transactions. Recording is synchronized; looking up is not, a reader checks that the
+// watermark has not passed the xid once it has read its bits.
+class FinishedTransactions {
+
+    private static final int WINDOW = 1 << 16;
+    private static final int WORDS = WINDOW / 64;
+
+    private final AtomicLongArray finished = new AtomicLongArray(WORDS);
+    private final AtomicLongArray aborted = new AtomicLongArray(WORDS);
+    // the lowest xid remembered, a multiple of 64
+    private volatile long watermark = 0;
+
+    synchronized void record(int xid, InactiveStatus status) {
+        // a transaction that finished after WINDOW younger ones is forgotten right away
+        if (xid < watermark)
+            return;
+        if (xid >= watermark + WINDOW)
+            advance(xid);
+
+        int word = index(xid);
+        long bit = 1L << (xid & 63);
+        if (status == InactiveStatus.ABORTED)
+            aborted.set(word, aborted.get(word) | bit);
+        finished.set(word, finished.get(word) | bit);
+    }
+
+    // The outcome of the transaction, null if it has not finished or has been forgotten
+    InactiveStatus get(int xid) {
+        long low = watermark;
+        if (xid < low || xid >= low + WINDOW)
+            return null;
+
+        int word = index(xid);
+        long bit = 1L << (xid & 63);
+        boolean done = (finished.get(word) & bit) != 0;
+        boolean abort = (aborted.get(word) & bit) != 0;
+        // the bits may belong to a younger xid if the watermark passed this one meanwhile
+        if (!done || xid < watermark)
+            return null;
+        return abort ? InactiveStatus.ABORTED : InactiveStatus.COMMITTED;
+    }
+
+    // Raise the watermark so that the window ends after the xid, then clear the words of the xids left
+    // below it for the ones they are reused by. Readers see the new watermark before the cleared words.
+    private void advance(int xid) {
+        long low = watermark;
+        long high = ((long) (xid >>> 6) + 1 << 6) - WINDOW;
+        watermark = high;
+        long words = Math.min(WORDS, (high - low) >>> 6);
+        for (long i = 0; i < words; i++) {
+            int word = (int) ((low >>> 6) + i) % WORDS;
+            finished.set(word, 0);
+            aborted.set(word, 0);
+        }
+    }
+
+    private static int index(int xid) {
+        return (xid >>> 6) % WORDS;
+    }
+}
@@ -0,0 +1,7 @@
+package Server.Transaction;
+
+// How the queries of a transaction read: SERIALIZABLE under the concurrency control of the middleware,
+// READ_COMMITTED straight from the last committed values, without locks and without enlisting the resource manager
+public enum IsolationLevel {
+    SERIALIZABLE, READ_COMMITTED
+}
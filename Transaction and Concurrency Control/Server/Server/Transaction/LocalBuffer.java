@@ -1,49 +1,52 @@
 package Server.Transaction;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LocalBuffer {
 
-    protected HashMap<Integer, InactiveStatus> inactiveTransactions = new HashMap<>();
-    protected HashMap<Integer, Transaction> activeTransactions = new HashMap<>();
+    protected FinishedTransactions inactiveTransactions = new FinishedTransactions();
+    protected ConcurrentHashMap<Integer, Transaction> activeTransactions = new ConcurrentHashMap<>();
 
-    // check whether or not this transaction is active according to the hashmap
+    // check whether or not this transaction is active, a transaction leaves the map once it finishes
     public boolean isActive(int xid){
-        synchronized (inactiveTransactions){
-            synchronized (activeTransactions){
-                return !inactiveTransactions.containsKey(xid) && activeTransactions.containsKey(xid);
-            }
-        }
+        return activeTransactions.containsKey(xid);
     }
 
     //-----------------------------
     // these methods are for active transactions
+    // a null transaction removes it
     public void updateActiveTransaction(int xid, Transaction transaction){
-        synchronized (activeTransactions){
+        if (transaction == null)
+            activeTransactions.remove(xid);
+        else
             activeTransactions.put(xid, transaction);
-        }
     }
 
     public Transaction getActiveTransaction(int transactionID){
-        synchronized (activeTransactions){
-            return activeTransactions.get(transactionID);
+        return activeTransactions.get(transactionID);
+    }
+
+    // the xids of the active transactions that are prepared and wait for their outcome
+    public HashSet<Integer> getPrepared(){
+        HashSet<Integer> prepared = new HashSet<>();
+        for (Transaction transaction : activeTransactions.values()) {
+            if (transaction.isPrepared())
+                prepared.add(transaction.getXId());
         }
+        return prepared;
     }
 
     //-----------------------------
     // these methods are for inactive transactions
     public void addInactiveTransaction(int xid, InactiveStatus inactiveStatus){
-        synchronized (activeTransactions){
-            inactiveTransactions.put(xid, inactiveStatus);
-        }
+        inactiveTransactions.record(xid, inactiveStatus);
     }
 
+    // null if the transaction has not finished, or finished so long ago that it has been forgotten
     public InactiveStatus getInactiveTransaction(int transactionID){
-        synchronized (activeTransactions){
-            return inactiveTransactions.get(transactionID);
-        }
+        return inactiveTransactions.get(transactionID);
     }
     //-----------------------------
 
 }
 
-
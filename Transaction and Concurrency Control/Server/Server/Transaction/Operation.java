@@ -0,0 +1,244 @@
+package Server.Transaction;
+
+import Server.Exceptions.InvalidTransactionException;
+import Server.Exceptions.TransactionAbortedException;
+import Server.Interface.IResourceManager;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.Vector;
+
+// One call of a transaction sent as a whole to IResourceManager.executeTransaction, built with the
+// factories below. It can carry a condition on its result: when the result does not meet it, the
+// transaction aborts there instead of going on
+public class Operation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        ADD_FLIGHT, ADD_CARS, ADD_ROOMS, NEW_CUSTOMER,
+        DELETE_FLIGHT, DELETE_CARS, DELETE_ROOMS, DELETE_CUSTOMER,
+        QUERY_FLIGHT, QUERY_CARS, QUERY_ROOMS, QUERY_CUSTOMER,
+        QUERY_FLIGHT_PRICE, QUERY_CARS_PRICE, QUERY_ROOMS_PRICE,
+        RESERVE_FLIGHT, RESERVE_CAR, RESERVE_ROOM, BUNDLE
+    }
+
+    // NONE accepts any result, SUCCEEDS a true or non null one, AT_LEAST a number not below the minimum
+    public enum Condition {
+        NONE, SUCCEEDS, AT_LEAST
+    }
+
+    private Type type;
+    // the flight number, or the customer id of the customer operations
+    private int number;
+    private String location;
+    private int count;
+    private int price;
+    private int customerID;
+    private Vector<String> flightNumbers;
+    private boolean car;
+    private boolean room;
+
+    private Condition condition = Condition.NONE;
+    private int minimum;
+
+    private Operation(Type type) {
+        this.type = type;
+    }
+
+    public static Operation addFlight(int flightNum, int flightSeats, int flightPrice) {
+        Operation operation = new Operation(Type.ADD_FLIGHT);
+        operation.number = flightNum;
+        operation.count = flightSeats;
+        operation.price = flightPrice;
+        return operation;
+    }
+
+    public static Operation addCars(String location, int numCars, int price) {
+        return add(Type.ADD_CARS, location, numCars, price);
+    }
+
+    public static Operation addRooms(String location, int numRooms, int price) {
+        return add(Type.ADD_ROOMS, location, numRooms, price);
+    }
+
+    public static Operation newCustomer(int customerID) {
+        return withNumber(Type.NEW_CUSTOMER, customerID);
+    }
+
+    public static Operation deleteFlight(int flightNum) {
+        return withNumber(Type.DELETE_FLIGHT, flightNum);
+    }
+
+    public static Operation deleteCars(String location) {
+        return withLocation(Type.DELETE_CARS, location);
+    }
+
+    public static Operation deleteRooms(String location) {
+        return withLocation(Type.DELETE_ROOMS, location);
+    }
+
+    public static Operation deleteCustomer(int customerID) {
+        return withNumber(Type.DELETE_CUSTOMER, customerID);
+    }
+
+    public static Operation queryFlight(int flightNum) {
+        return withNumber(Type.QUERY_FLIGHT, flightNum);
+    }
+
+    public static Operation queryCars(String location) {
+        return withLocation(Type.QUERY_CARS, location);
+    }
+
+    public static Operation queryRooms(String location) {
+        return withLocation(Type.QUERY_ROOMS, location);
+    }
+
+    public static Operation queryCustomerInfo(int customerID) {
+        return withNumber(Type.QUERY_CUSTOMER, customerID);
+    }
+
+    public static Operation queryFlightPrice(int flightNum) {
+        return withNumber(Type.QUERY_FLIGHT_PRICE, flightNum);
+    }
+
+    public static Operation queryCarsPrice(String location) {
+        return withLocation(Type.QUERY_CARS_PRICE, location);
+    }
+
+    public static Operation queryRoomsPrice(String location) {
+        return withLocation(Type.QUERY_ROOMS_PRICE, location);
+    }
+
+    public static Operation reserveFlight(int customerID, int flightNum) {
+        Operation operation = withNumber(Type.RESERVE_FLIGHT, flightNum);
+        operation.customerID = customerID;
+        return operation;
+    }
+
+    public static Operation reserveCar(int customerID, String location) {
+        Operation operation = withLocation(Type.RESERVE_CAR, location);
+        operation.customerID = customerID;
+        return operation;
+    }
+
+    public static Operation reserveRoom(int customerID, String location) {
+        Operation operation = withLocation(Type.RESERVE_ROOM, location);
+        operation.customerID = customerID;
+        return operation;
+    }
+
+    public static Operation bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room) {
+        Operation operation = withLocation(Type.BUNDLE, location);
+        operation.customerID = customerID;
+        operation.flightNumbers = new Vector<String>(flightNumbers);
+        operation.car = car;
+        operation.room = room;
+        return operation;
+    }
+
+    // The transaction aborts unless the operation returns true or an item
+    public Operation mustSucceed() {
+        condition = Condition.SUCCEEDS;
+        return this;
+    }
+
+    // The transaction aborts unless the operation returns at least the minimum, for the queries
+    public Operation atLeast(int minimum) {
+        condition = Condition.AT_LEAST;
+        this.minimum = minimum;
+        return this;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+
+    // Run the operation as part of the transaction, the result is the one of the matching call
+    public Object execute(IResourceManager manager, int xid)
+            throws RemoteException, InvalidTransactionException, TransactionAbortedException {
+        switch (type) {
+            case ADD_FLIGHT:
+                return manager.addFlight(xid, number, count, price);
+            case ADD_CARS:
+                return manager.addCars(xid, location, count, price);
+            case ADD_ROOMS:
+                return manager.addRooms(xid, location, count, price);
+            case NEW_CUSTOMER:
+                return manager.newCustomer(xid, number);
+            case DELETE_FLIGHT:
+                return manager.deleteFlight(xid, number);
+            case DELETE_CARS:
+                return manager.deleteCars(xid, location);
+            case DELETE_ROOMS:
+                return manager.deleteRooms(xid, location);
+            case DELETE_CUSTOMER:
+                return manager.deleteCustomer(xid, number);
+            case QUERY_FLIGHT:
+                return manager.queryFlight(xid, number);
+            case QUERY_CARS:
+                return manager.queryCars(xid, location);
+            case QUERY_ROOMS:
+                return manager.queryRooms(xid, location);
+            case QUERY_CUSTOMER:
+                return manager.queryCustomerInfo(xid, number);
+            case QUERY_FLIGHT_PRICE:
+                return manager.queryFlightPrice(xid, number);
+            case QUERY_CARS_PRICE:
+                return manager.queryCarsPrice(xid, location);
+            case QUERY_ROOMS_PRICE:
+                return manager.queryRoomsPrice(xid, location);
+            case RESERVE_FLIGHT:
+                return manager.reserveFlight(xid, customerID, number);
+            case RESERVE_CAR:
+                return manager.reserveCar(xid, customerID, location);
+            case RESERVE_ROOM:
+                return manager.reserveRoom(xid, customerID, location);
+            case BUNDLE:
+                return manager.bundle(xid, customerID, flightNumbers, location, car, room);
+            default:
+                throw new IllegalStateException("Unknown operation " + type);
+        }
+    }
+
+    // Whether the result lets the transaction go on
+    public boolean holds(Object result) {
+        switch (condition) {
+            case SUCCEEDS:
+                return result != null && !Boolean.FALSE.equals(result);
+            case AT_LEAST:
+                return result instanceof Integer && (Integer) result >= minimum;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String target = location != null ? location : String.valueOf(number);
+        return type + "(" + target + ")" + (condition == Condition.NONE ? "" : " " + condition);
+    }
+
+    private static Operation add(Type type, String location, int count, int price) {
+        Operation operation = withLocation(type, location);
+        operation.count = count;
+        operation.price = price;
+        return operation;
+    }
+
+    private static Operation withNumber(Type type, int number) {
+        Operation operation = new Operation(type);
+        operation.number = number;
+        return operation;
+    }
+
+    private static Operation withLocation(Type type, String location) {
+        Operation operation = new Operation(type);
+        operation.location = location;
+        return operation;
+    }
+}
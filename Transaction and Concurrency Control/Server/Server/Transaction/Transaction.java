@@ -1,21 +1,42 @@
 package Server.Transaction;
 
+import Server.Common.Delta;
+import Server.Common.Overwrite;
 import Server.Common.RMHashMap;
 import Server.Common.RMItem;
 import Server.Interface.IResourceManager;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class Transaction {
 
     private int xid;
-    // the data that this transaction is going to write
-    private RMHashMap m_data = new RMHashMap();
-    private long lastAccessed = getCurrentTime();
+    // the changes that this transaction is going to commit, by key
+    private HashMap<String, Delta> m_data = new HashMap<>();
+    // the versions of the committed items it read, as they were first read, checked when it commits
+    private HashMap<String, Long> m_reads = new HashMap<>();
+    // the overwrite versions of the items it changes commutatively, as they were before the first change
+    private HashMap<String, Long> m_bases = new HashMap<>();
+    // touched by the client threads, read by the reaper
+    private volatile long lastAccessed = getCurrentTime();
     // the list of involved resource managers
     private ArrayList<IResourceManager> managers = new ArrayList<>();
     // in milliseconds
     private int timeToLive = -1;
+    // whether the write set has been logged by prepare, so that the outcome has to be logged too
+    private boolean prepared = false;
+    // the snapshot its scans read, -1 until the first one
+    private long snapshot = -1;
+    // how its queries read, only used by the middleware
+    private IsolationLevel isolation = IsolationLevel.SERIALIZABLE;
+    // guarded by this, only used by the middleware: a transaction is aborted, when wounded by an older one
+    // or otherwise, only if it has not started to commit, and cannot start to commit once it is aborted
+    private boolean committing = false;
+    private boolean wounded = false;
 
     public Transaction(int xid, int timeToLive){
         this.xid = xid;
@@ -27,11 +48,18 @@ public class Transaction {
         this.xid = xid;
     }
 
+    public int getXId(){
+        return xid;
+    }
+
     public boolean hasExpired(){
-        // get the current time
-        long currentTime = getCurrentTime();
         // check whether or not it has expired
-        return (currentTime - lastAccessed > timeToLive);
+        return getCurrentTime() >= getDeadline();
+    }
+
+    // the time at which the transaction expires unless it is touched again
+    public long getDeadline(){
+        return lastAccessed + timeToLive;
     }
 
     public long getCurrentTime(){
@@ -52,35 +80,176 @@ public class Transaction {
         return managers;
     }
 
-    public RMHashMap getLocalBuffer(){
-        return m_data;
+    public boolean isPrepared(){
+        return prepared;
+    }
+
+    public void setPrepared(boolean prepared){
+        this.prepared = prepared;
+    }
+
+    // Returns false if the transaction has been wounded and must abort instead
+    public synchronized boolean startCommit(){
+        if (wounded)
+            return false;
+        committing = true;
+        return true;
+    }
+
+    // Mark the transaction as aborting. Returns false if it is committing already: only its commit finishes
+    // it then, and it keeps its locks until it is done
+    public synchronized boolean wound(){
+        if (committing)
+            return false;
+        wounded = true;
+        return true;
+    }
+
+    public IsolationLevel getIsolation(){
+        return isolation;
+    }
+
+    public void setIsolation(IsolationLevel isolation){
+        this.isolation = isolation;
+    }
+
+    public long getSnapshot(){
+        return snapshot;
+    }
+
+    public void setSnapshot(long snapshot){
+        this.snapshot = snapshot;
     }
 
-    // these two methods are borrowed from the original template code
-    // the m_data are just a local copy
-    // Writes a data item
+    // these methods are adapted from the original template code
+    // the m_data are the changes made locally, applied to the committed data on read and on commit
+    // Writes a data item, null deletes it
     public void writeData(int xid, String key, RMItem value)
+    {
+        updateData(xid, key, new Overwrite(value));
+    }
+
+    // Records a change to a data item, after the ones already made to it
+    public void updateData(int xid, String key, Delta delta)
     {
         synchronized(m_data) {
-            m_data.put(key, value);
+            Delta earlier = m_data.get(key);
+            m_data.put(key, earlier == null ? delta : earlier.merge(delta));
         }
     }
 
-    // Reads a data item
-    public RMItem readData(int xid, String key)
+    public boolean isReadOnly()
     {
         synchronized(m_data) {
-            RMItem item = m_data.get(key);
-            if (item != null) {
-                return (RMItem)item.clone();
+            return m_data.isEmpty();
+        }
+    }
+
+    // Reads a data item: a copy of the committed one with the changes of the transaction applied
+    public RMItem readData(int xid, String key, RMItem committed, long version)
+    {
+        synchronized(m_data) {
+            if (!m_reads.containsKey(key)) {
+                m_reads.put(key, version);
+            }
+            Delta delta = m_data.get(key);
+            if (delta != null) {
+                return delta.apply(committed);
+            }
+        }
+        if (committed != null) {
+            return (RMItem)committed.clone();
+        }
+        return null;
+    }
+
+    // Records the overwrite version of an item it is about to change commutatively, checked when it commits
+    public void readBase(String key, long overwrites)
+    {
+        synchronized(m_data) {
+            if (!m_bases.containsKey(key)) {
+                m_bases.put(key, overwrites);
             }
-            return null;
         }
     }
 
-    public boolean contains(String key) {
-        synchronized (m_data) {
-            return m_data.containsKey(key);
+    // Reads a data item of a snapshot, or as last committed, with the changes of the transaction applied.
+    // Not recorded as a read, so not validated on commit. The item is shared when unchanged and must not be changed
+    public RMItem readSnapshot(String key, RMItem committed)
+    {
+        synchronized(m_data) {
+            Delta delta = m_data.get(key);
+            if (delta != null) {
+                return delta.apply(committed);
+            }
+        }
+        return committed;
+    }
+
+    public Map<String, Long> getReads()
+    {
+        synchronized(m_data) {
+            return new HashMap<>(m_reads);
+        }
+    }
+
+    public Map<String, Long> getBases()
+    {
+        synchronized(m_data) {
+            return new HashMap<>(m_bases);
+        }
+    }
+
+    public Set<String> getWrites()
+    {
+        synchronized(m_data) {
+            return new HashSet<>(m_data.keySet());
+        }
+    }
+
+    // The writes that only make changes that commute, such as the reservations under escrow
+    public Set<String> getCommutativeWrites()
+    {
+        synchronized(m_data) {
+            Set<String> keys = new HashSet<>();
+            for (Map.Entry<String, Delta> entry : m_data.entrySet()) {
+                if (entry.getValue().commutes()) {
+                    keys.add(entry.getKey());
+                }
+            }
+            return keys;
+        }
+    }
+
+    // The data items written by the transaction, the ones to log and commit: its changes applied to the
+    // committed data. The changes that do not commute are replaced by the items, so that a prepared
+    // transaction commits the write set it logged; the ones that commute are resolved again against the
+    // committed data when the transaction commits
+    public RMHashMap getWriteSet(RMHashMap committed)
+    {
+        synchronized(m_data) {
+            RMHashMap writeSet = new RMHashMap();
+            for (Map.Entry<String, Delta> entry : m_data.entrySet()) {
+                // the committed items are replaced by commits, never modified
+                RMItem base;
+                synchronized(committed) {
+                    base = committed.get(entry.getKey());
+                }
+                RMItem item = entry.getValue().apply(base);
+                writeSet.put(entry.getKey(), item);
+                if (!entry.getValue().commutes()) {
+                    entry.setValue(new Overwrite(item));
+                }
+            }
+            return writeSet;
+        }
+    }
+
+    // The changes of the transaction by key, the ones to log when it prepares
+    public HashMap<String, Delta> getChanges()
+    {
+        synchronized(m_data) {
+            return new HashMap<>(m_data);
         }
     }
 }
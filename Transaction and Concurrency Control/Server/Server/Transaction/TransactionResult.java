@@ -0,0 +1,63 @@
+package Server.Transaction;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+// What IResourceManager.executeTransaction answers: whether the transaction committed, and the results
+// of its operations in order, up to the one it stopped at if it aborted
+public class TransactionResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int xid;
+    private boolean committed;
+    private ArrayList<Object> results;
+    // the operation the transaction aborted at, -1 if it committed or was aborted by the commit
+    private int failedOperation;
+    private String reason;
+
+    private TransactionResult(int xid, boolean committed, List<Object> results, int failedOperation, String reason) {
+        this.xid = xid;
+        this.committed = committed;
+        this.results = new ArrayList<Object>(results);
+        this.failedOperation = failedOperation;
+        this.reason = reason;
+    }
+
+    public static TransactionResult committed(int xid, List<Object> results) {
+        return new TransactionResult(xid, true, results, -1, null);
+    }
+
+    public static TransactionResult aborted(int xid, List<Object> results, int failedOperation, String reason) {
+        return new TransactionResult(xid, false, results, failedOperation, reason);
+    }
+
+    public int getXid() {
+        return xid;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    public List<Object> getResults() {
+        return results;
+    }
+
+    public int getFailedOperation() {
+        return failedOperation;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        if (committed)
+            return "The transaction " + xid + " committed: " + results;
+        return "The transaction " + xid + " aborted" + (failedOperation < 0 ? "" : " at the operation " + failedOperation) +
+                ": " + reason + " " + results;
+    }
+}
@@ -0,0 +1,6 @@
+package Server.Transaction;
+
+// The answer of a resource manager to prepare, READ_ONLY if it has nothing to commit and is done
+public enum Vote {
+    YES, NO, READ_ONLY
+}
@@ -1,4 +1,4 @@
-#Usage: ./run_server.sh [<rmi_name>]
+#Usage: ./run_server.sh [<rmi_name> [<flush_interval_ms> [<batch_size> [<checkpoint_interval_ms>]]]]
 
 ./run_rmi.sh > /dev/null 2>&1
-java -Djava.security.policy=java.policy -Djava.rmi.server.codebase=file:$(pwd)/ Server.RMI.RMIResourceManager $1
+java -Djava.security.policy=java.policy -Djava.rmi.server.codebase=file:$(pwd)/ Server.RMI.RMIResourceManager $1 $2 $3 $4